@@ -16,20 +16,41 @@ package org.phpmaven.plugin.build;
 
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.apache.maven.artifact.repository.ArtifactRepository;
 import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.project.MavenProject;
+import org.apache.maven.wagon.PathUtils;
 import org.codehaus.plexus.util.DirectoryWalkListener;
-import org.codehaus.plexus.util.DirectoryWalker;
-import org.codehaus.plexus.util.cli.CommandLineException;
+import org.codehaus.plexus.util.FileUtils;
 import org.codehaus.plexus.util.cli.CommandLineUtils;
-import org.codehaus.plexus.util.cli.Commandline;
 import org.codehaus.plexus.util.cli.StreamConsumer;
 
 import java.io.File;
 import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Helper class to give fast access to the PHP executable and the basic configuration.
@@ -49,22 +70,52 @@ public abstract class AbstractPhpMojo extends AbstractMojo implements DirectoryW
     public static final String PHP_FLAG_INCLUDES = "-d include_path";
 
     /**
-     * This list describes all keywords which will be printed out by PHP
-     * if an error occurs.
+     * How many diagnostics of a single execution are kept for the exception.
      */
-    private static final String[] ERROR_IDENTIFIERS = new String[]{
-        "Fatal error",
-        "Error",
-        "Parse error"
-    };
+    private static final int MAX_DIAGNOSTICS = 1000;
+
+    /**
+     * How long to wait for the output of a killed process.
+     */
+    private static final long KILL_GRACE_MILLIS = 5000;
+
+    /**
+     * Kills PHP processes which exceed their timeout.
+     */
+    private static final ProcessWatchdog WATCHDOG = new ProcessWatchdog();
+
+    /**
+     * Prefix of paths within phar archives.
+     */
+    private static final String PHAR_PROTOCOL = "phar://";
+
+    /**
+     * Flag to let PHP run the given code.
+     */
+    private static final String PHP_FLAG_RUN = "-r";
+
+    /**
+     * Flag to set an ini setting.
+     */
+    private static final String PHP_FLAG_INI = "-d";
 
     /**
-     * This list describes all keywords which will be printed out by PHP
-     * if a warrning occurs.
+     * Ini setting with the include paths.
      */
-    private static final String[] WARNING_IDENTIFIERS = new String[]{
-        "Warning",
-        "Notice"
+    private static final String PHP_INI_INCLUDE_PATH = "include_path";
+
+    /**
+     * The fields Maven injects, taken over by {@link #configureFrom(AbstractPhpMojo)}.
+     */
+    private static final String[] PARAMETERS = {
+        "project", "localRepository", "baseDir", "phpExecutable", "excludes", "includes",
+        "additionalPhpParameters", "compileClasspathElements", "testClasspathElements", "sourceDirectory",
+        "testSourceDirectory", "targetClassesDirectory", "targetTestClassesDirectory",
+        "dependenciesTargetDirectory", "testDependenciesTargetDirectory", "phpFileEnding", "includeInJar",
+        "forceOverwrite", "ignoreIncludeErrors", "logPhpOutput", "threads", "workDirectory", "workerPoolSize",
+        "workerRecycleAfter", "workerFallbackToFork", "outputCaptureLimit", "outputDirectory",
+        "useDependencyStore", "dependencyStoreDirectory", "dependencyLinkMode", "copyStrategy",
+        "usePharDependencies", "timeout", "goalTimeout",
     };
 
 
@@ -77,6 +128,14 @@ public abstract class AbstractPhpMojo extends AbstractMojo implements DirectoryW
      */
     private MavenProject project;
 
+    /**
+     * The local repository, used to keep information about the PHP installation between builds.
+     *
+     * @parameter expression="${localRepository}"
+     * @readonly
+     */
+    private ArtifactRepository localRepository;
+
     /**
      * The project's base directory.
      *
@@ -210,16 +269,215 @@ public abstract class AbstractPhpMojo extends AbstractMojo implements DirectoryW
      */
     private boolean logPhpOutput;
 
+    /**
+     * How many files will be handled in parallel. Either a fixed number or a multiple of the
+     * available processors, e.g. "1C" for one thread per core or "0.5C" for one thread per two cores.
+     *
+     * @parameter
+     */
+    private String threads = "1";
+
+    /**
+     * Where the plugin stores its working files like bundled scripts.
+     *
+     * @parameter
+     */
+    private String workDirectory = "target/php-maven";
+
+    /**
+     * How many long running PHP worker processes may be used to execute files. A worker executes
+     * many files one after another instead of starting a new PHP process per file. Files are
+     * executed at global scope, but workers will share global state (variables, constants,
+     * functions, classes) between files, and a file which was already loaded by an earlier file
+     * of the same worker is not executed again. 0 disables the workers.
+     *
+     * @parameter
+     */
+    private int workerPoolSize;
+
+    /**
+     * After how many files a PHP worker process will be replaced by a fresh one.
+     *
+     * @parameter
+     */
+    private int workerRecycleAfter = 100;
+
+    /**
+     * If true, a file will be executed in its own PHP process if the workers can not be used.
+     *
+     * @parameter
+     */
+    private boolean workerFallbackToFork = true;
+
+    /**
+     * How many characters of the output of a single PHP execution are kept in memory. Larger
+     * outputs only keep their beginning and end, the complete output is written to the
+     * {@link #outputDirectory}.
+     *
+     * @parameter
+     */
+    private int outputCaptureLimit = 1048576;
+
+    /**
+     * Where the complete output of PHP executions is written to if it exceeds the
+     * {@link #outputCaptureLimit}.
+     *
+     * @parameter
+     */
+    private String outputDirectory = "target/php-output";
+
+    /**
+     * If true, every dependency is extracted only once into a store shared by all builds on
+     * this machine and its files are linked into the dependency directories of the modules.
+     * Files within the dependency directories must not be modified then.
+     *
+     * @parameter
+     */
+    private boolean useDependencyStore;
+
+    /**
+     * Where the shared dependency store is located, by default below the local repository.
+     *
+     * @parameter
+     */
+    private String dependencyStoreDirectory;
+
+    /**
+     * How files of the shared dependency store are placed into the dependency directories:
+     * "hardlink", "symlink" or "copy". Links fall back to copies if the file system does not
+     * support them.
+     *
+     * @parameter
+     */
+    private String dependencyLinkMode = "hardlink";
+
+    /**
+     * How processed files are placed into the target directories: "copy", "hardlink", "reflink"
+     * (a copy within the kernel which shares the data blocks where the file system supports it)
+     * or "symlink". Links fall back to copies across file systems. Linked files must not be
+     * modified in the target directories.
+     *
+     * @parameter
+     */
+    private String copyStrategy = "copy";
+
+    /**
+     * If true, dependencies are not unpacked. Every dependency jar is converted once into a
+     * phar archive which is put on the include path instead. Requires the PHP extension phar.
+     *
+     * @parameter
+     */
+    private boolean usePharDependencies;
+
+    /**
+     * How many seconds a single PHP execution may take before it gets killed, 0 for no limit.
+     * The killed execution fails, the remaining files will still be handled.
+     *
+     * @parameter
+     */
+    private int timeout;
+
+    /**
+     * How many seconds all PHP executions of the goal may take together, 0 for no limit.
+     * Files which are not handled within this time fail without being executed.
+     *
+     * @parameter
+     */
+    private int goalTimeout;
+
+    /**
+     * When the goal started, the base for the {@link #goalTimeout}.
+     */
+    private final long goalStart = System.currentTimeMillis();
+
     /**
      * The used PHP version (cached after initial call of {@link #getPhpVersion()}.
      */
     private PhpVersion phpVersion;
 
+    /**
+     * The used PHP installation (cached after initial call of {@link #getPhpRuntime()}.
+     */
+    private PhpRuntime phpRuntime;
+
     /**
      * collects all exceptions during the file walk.
      */
     private List<Exception> collectedExceptions = Lists.newArrayList();
 
+    /**
+     * Executes the file handling if more than one thread is configured (only set during the walk).
+     */
+    private ExecutorService walkExecutor;
+
+    /**
+     * Results of the file handling in walk order (only used with {@link #walkExecutor}).
+     */
+    private List<Future<Exception>> pendingFiles;
+
+    /**
+     * The arguments used for every execution (created on first use by {@link #getLauncher()}).
+     */
+    private PhpLauncher launcher;
+
+    /**
+     * The launchers with include paths by their include path.
+     */
+    private final Map<String, PhpLauncher> includePathLaunchers = Maps.newHashMap();
+
+    /**
+     * The phar archives following a dependency directory in include paths, by the absolute
+     * path of the directory (only used with {@link #usePharDependencies}).
+     */
+    private final Map<String, List<String>> pharIncludePaths = new ConcurrentHashMap<String, List<String>>();
+
+    /**
+     * Processed files to copy into a target directory after the walk.
+     */
+    private final Queue<File> filesToCopy = new ConcurrentLinkedQueue<File>();
+
+    /**
+     * The PHP workers (created on first use by {@link #executeFile(File, String[])}).
+     */
+    private PhpWorkerPool workerPool;
+
+    /**
+     * Set if the PHP workers failed and files will be executed in their own process.
+     */
+    private boolean workerPoolBroken;
+
+    /**
+     * Takes over the configuration of another goal, so this goal can do a part of its work.
+     * Copies the {@link #PARAMETERS} only, so this goal starts its own PHP runtime, launchers
+     * and workers.
+     *
+     * @param other the configured goal
+     */
+    final void configureFrom(AbstractPhpMojo other) {
+        for (String parameter : PARAMETERS) {
+            try {
+                final Field field = AbstractPhpMojo.class.getDeclaredField(parameter);
+                field.setAccessible(true);
+                field.set(this, field.get(other));
+            } catch (NoSuchFieldException e) {
+                throw new IllegalStateException("Cannot configure " + parameter, e);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException("Cannot configure " + parameter, e);
+            }
+        }
+        setLog(other.getLog());
+        setPluginContext(other.getPluginContext());
+    }
+
+    /**
+     * Changes the time limit of all PHP executions of this goal.
+     *
+     * @param seconds the limit or 0 for none
+     */
+    final void setGoalTimeout(int seconds) {
+        this.goalTimeout = seconds;
+    }
+
 
     /**
      * Callback for executing a file.
@@ -385,6 +643,44 @@ public abstract class AbstractPhpMojo extends AbstractMojo implements DirectoryW
         return testDependenciesTargetDirectory;
     }
 
+    /**
+     * Where the plugin stores its working files.
+     *
+     * @return the plugin's working directory
+     */
+    public File getWorkDirectory() {
+        return new File(getBaseDir(), workDirectory);
+    }
+
+    /**
+     * The configured working directory.
+     *
+     * @see #getWorkDirectory()
+     * @return the configured probably relative directory
+     */
+    public String getPlainWorkDirectory() {
+        return workDirectory;
+    }
+
+    /**
+     * Where large PHP outputs are written to.
+     *
+     * @return the output directory
+     */
+    public File getOutputDirectory() {
+        return new File(getBaseDir(), outputDirectory);
+    }
+
+    /**
+     * The configured output directory.
+     *
+     * @see #getOutputDirectory()
+     * @return the configured probably relative directory
+     */
+    public String getPlainOutputDirectory() {
+        return outputDirectory;
+    }
+
     /**
      * Where the sources should get copied to.
      *
@@ -469,6 +765,74 @@ public abstract class AbstractPhpMojo extends AbstractMojo implements DirectoryW
         return logPhpOutput;
     }
 
+    /**
+     * The configured thread count.
+     *
+     * @see #getThreadCount()
+     * @return the configured threads, either a number or a multiple of the cores like "1C"
+     */
+    public String getThreads() {
+        return threads;
+    }
+
+    /**
+     * How many files will be handled in parallel.
+     *
+     * @return the number of threads, at least 1
+     */
+    public int getThreadCount() {
+        return parseThreadCount(threads);
+    }
+
+    /**
+     * Parses a thread count which is either a number or a multiple of the available
+     * processors like "1C".
+     *
+     * @param value the configured value
+     * @return the number of threads, at least 1
+     */
+    protected static int parseThreadCount(String value) {
+        if (value == null || value.trim().length() == 0) {
+            return 1;
+        }
+        final String trimmed = value.trim();
+        final int count;
+        if (trimmed.endsWith("C") || trimmed.endsWith("c")) {
+            final float factor = Float.parseFloat(trimmed.substring(0, trimmed.length() - 1));
+            count = (int) (factor * Runtime.getRuntime().availableProcessors());
+        } else {
+            count = Integer.parseInt(trimmed);
+        }
+        return Math.max(1, count);
+    }
+
+    /**
+     * How many PHP worker processes may be used.
+     *
+     * @return the worker pool size, 0 if workers are disabled
+     */
+    public int getWorkerPoolSize() {
+        return workerPoolSize;
+    }
+
+    /**
+     * After how many files a PHP worker will be replaced.
+     *
+     * @return number of files per worker
+     */
+    public int getWorkerRecycleAfter() {
+        return workerRecycleAfter;
+    }
+
+    /**
+     * Returns if files should be executed in their own process if the workers fail.
+     *
+     * @return if forking is used as fallback
+     */
+    public boolean isWorkerFallbackToFork() {
+        return workerFallbackToFork;
+    }
+
     /**
      * Nessecary for the DirectoryWalker, do not use.
      *
@@ -482,37 +846,54 @@ public abstract class AbstractPhpMojo extends AbstractMojo implements DirectoryW
     }
 
     /**
-     * Checks if a line (string) contains a PHP error message.
+     * The PHP executable with the additional parameters, the base of every execution.
      *
-     * @param line output line
-     * @return if the line contains php error messages
-     */
-    private boolean isError(String line) {
-        final String trimmedLine = line.trim();
-        for (String errorIdentifier : ERROR_IDENTIFIERS) {
-            if (trimmedLine.startsWith(errorIdentifier + ":")
-                || trimmedLine.startsWith("<b>" + errorIdentifier + "</b>:")) {
-                return true;
+     * @return the launcher
+     * @throws PhpException if the additional parameters are invalid
+     */
+    synchronized PhpLauncher getLauncher() throws PhpException {
+        if (launcher == null) {
+            final List<String> command = Lists.newArrayList(phpExecutable);
+            if (getAdditionalPhpParameters() != null) {
+                command.addAll(Arrays.asList(splitArguments(getAdditionalPhpParameters())));
             }
+            launcher = new PhpLauncher(command);
         }
-        return false;
+        return launcher;
     }
 
     /**
-     * Checks if a line (string) contains a PHP warning message.
+     * The PHP executable with the additional parameters and the given include paths.
      *
-     * @param line output line
-     * @return if the line contains php warning messages
+     * @param paths a list of paths
+     * @return the launcher
+     * @throws PhpException if the additional parameters are invalid
+     */
+    synchronized PhpLauncher getLauncher(String[] paths) throws PhpException {
+        final String includePath = includePath(paths);
+        PhpLauncher includePathLauncher = includePathLaunchers.get(includePath);
+        if (includePathLauncher == null) {
+            includePathLauncher = getLauncher().with(PHP_FLAG_INI, PHP_INI_INCLUDE_PATH + "=" + includePath);
+            includePathLaunchers.put(includePath, includePathLauncher);
+        }
+        return includePathLauncher;
+    }
+
+    /**
+     * Splits a string of arguments like a shell would do.
+     *
+     * @param arguments string of arguments for PHP
+     * @return the single arguments
+     * @throws PhpCoreException if the arguments are not well formed
      */
-    private boolean isWarning(String line) {
-        final String trimmedLine = line.trim();
-        for (String warningIdentifier : WARNING_IDENTIFIERS) {
-            if (trimmedLine.startsWith(warningIdentifier + ":")
-                || trimmedLine.startsWith("<b>" + warningIdentifier + "</b>:")) {
-                return true;
-            }
+    private static String[] splitArguments(String arguments) throws PhpCoreException {
+        try {
+            return CommandLineUtils.translateCommandline(arguments);
+        /*CHECKSTYLE:OFF*/
+        } catch (Exception e) {
+        /*CHECKSTYLE:ON*/
+            throw new PhpCoreException("Invalid PHP arguments: " + arguments, e);
         }
-        return false;
     }
 
     /**
@@ -526,24 +907,106 @@ public abstract class AbstractPhpMojo extends AbstractMojo implements DirectoryW
      */
     public int execute(String arguments, StreamConsumer stdout, StreamConsumer stderr) throws PhpException {
         Preconditions.checkNotNull(arguments, "Arguments");
+        return execute(getLauncher().command(splitArguments(arguments)), (File) null, stdout, stderr);
+    }
+
+    /**
+     * Executes PHP and kills it if it exceeds the timeout.
+     *
+     * @param command the executable and all arguments, see {@link PhpLauncher#command(String...)}
+     * @param file a hint which file will be processed or null
+     * @param stdout handler for stdout lines
+     * @param stderr handler for stderr lines
+     * @return the returncode of PHP
+     * @throws PhpException if the execution failed or timed out
+     */
+    int execute(List<String> command, File file, StreamConsumer stdout, StreamConsumer stderr)
+        throws PhpException {
+        return execute(command, file, 1, stdout, stderr);
+    }
+
+    /**
+     * Executes PHP which handles several files and kills it if it exceeds the timeout of
+     * all these files.
+     *
+     * @param command the executable and all arguments, see {@link PhpLauncher#command(String...)}
+     * @param file a hint which file will be processed or null
+     * @param files how many files PHP handles, the timeout is multiplied by it
+     * @param stdout handler for stdout lines
+     * @param stderr handler for stderr lines
+     * @return the returncode of PHP
+     * @throws PhpException if the execution failed or timed out
+     */
+    int execute(List<String> command, File file, int files, StreamConsumer stdout, StreamConsumer stderr)
+        throws PhpException {
+        Preconditions.checkNotNull(command, "Command");
         Preconditions.checkNotNull(stdout, "stdout");
         Preconditions.checkNotNull(stderr, "stderr");
 
-        final String command;
-        if (getAdditionalPhpParameters() != null) {
-            command = phpExecutable + " " + getAdditionalPhpParameters() + " " + arguments;
-        } else {
-            command = phpExecutable + " " + arguments;
-        }
+        final long timeoutMillis = getExecutionTimeout(file, files);
+        getLog().debug("Executing " + command);
 
-        final Commandline commandLine = new Commandline(command);
+        final Process process;
+        try {
+            process = PhpLauncher.start(command);
+        } catch (IOException e) {
+            throw new PhpCoreException("Failed to start PHP: " + command, e);
+        }
+        final Future<?> outputPumper = PhpLauncher.pump(process.getInputStream(), stdout);
+        final Future<?> errorPumper = PhpLauncher.pump(process.getErrorStream(), stderr);
 
+        final ProcessWatchdog.Watch watch = timeoutMillis > 0 ? WATCHDOG.watch(process, timeoutMillis) : null;
         try {
-            getLog().debug("Executing " + commandLine);
-            return CommandLineUtils.executeCommandLine(commandLine, stdout, stderr);
-        } catch (CommandLineException e) {
-            throw new PhpCoreException(e);
+            final int returnCode = process.waitFor();
+            if (watch != null && watch.isExpired()) {
+                // children may still hold the streams open
+                try {
+                    outputPumper.get(KILL_GRACE_MILLIS, TimeUnit.MILLISECONDS);
+                    errorPumper.get(KILL_GRACE_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    getLog().debug("Output of killed PHP process still open: " + command);
+                } catch (ExecutionException e) {
+                    getLog().debug("Failed to read output of killed PHP process: " + command);
+                }
+                throw new PhpTimeoutException(file,
+                    "Killed PHP after " + timeoutMillis + "ms: " + command, timeoutMillis);
+            }
+            outputPumper.get();
+            errorPumper.get();
+            return returnCode;
+        } catch (ExecutionException e) {
+            throw new PhpCoreException("Failed to read output of PHP: " + command, e.getCause());
+        } catch (InterruptedException e) {
+            ProcessWatchdog.killTree(process);
+            Thread.currentThread().interrupt();
+            throw new PhpCoreException("Interrupted while executing PHP", e);
+        } finally {
+            if (watch != null) {
+                watch.cancel();
+            }
+        }
+    }
+
+    /**
+     * How long the next PHP execution may take.
+     *
+     * @param file a hint which file will be processed or null
+     * @param files how many files PHP handles
+     * @return the timeout in milliseconds or 0 for no limit
+     * @throws PhpTimeoutException if the goal timeout is already exceeded
+     */
+    private long getExecutionTimeout(File file, int files) throws PhpTimeoutException {
+        long timeoutMillis = TimeUnit.SECONDS.toMillis(Math.max(0, timeout)) * Math.max(1, files);
+        if (goalTimeout > 0) {
+            final long goalMillis = TimeUnit.SECONDS.toMillis(goalTimeout);
+            final long remaining = goalStart + goalMillis - System.currentTimeMillis();
+            if (remaining <= 0) {
+                throw new PhpTimeoutException(file,
+                    "Goal timeout of " + goalTimeout + "s exceeded, PHP was not executed", goalMillis);
+            }
+            timeoutMillis = timeoutMillis == 0 ? remaining : Math.min(timeoutMillis, remaining);
         }
+        return timeoutMillis;
     }
 
     /**
@@ -556,69 +1019,56 @@ public abstract class AbstractPhpMojo extends AbstractMojo implements DirectoryW
      * @return the returncode of PHP
      * @throws PhpException if the execution failed
      */
-    public int execute(String arguments, File file, final StreamConsumer stdout) throws PhpException {
-        final StringBuilder stderr = new StringBuilder();
+    public int execute(String arguments, File file, StreamConsumer stdout) throws PhpException {
+        Preconditions.checkNotNull(arguments, "Arguments");
+        return execute(getLauncher().command(splitArguments(arguments)), file, stdout);
+    }
 
-        final AtomicBoolean throwError = new AtomicBoolean(false);
-        final AtomicBoolean throwWarning = new AtomicBoolean(false);
+    /**
+     * Executes PHP and throws an exception if the execution fails.
+     *
+     * @param command the executable and all arguments, see {@link PhpLauncher#command(String...)}
+     * @param file a hint which file will be processed
+     * @param stdout handler for stdout lines
+     * @return the returncode of PHP
+     * @throws PhpException if the execution failed
+     */
+    int execute(List<String> command, File file, StreamConsumer stdout) throws PhpException {
+        return execute(command, file, 1, stdout);
+    }
+
+    /**
+     * Executes PHP which handles several files and throws an exception if the execution fails.
+     *
+     * @param command the executable and all arguments, see {@link PhpLauncher#command(String...)}
+     * @param file a hint which file will be processed
+     * @param files how many files PHP handles, the timeout is multiplied by it
+     * @param stdout handler for stdout lines
+     * @return the returncode of PHP
+     * @throws PhpException if the execution failed
+     */
+    int execute(List<String> command, File file, int files, final StreamConsumer stdout) throws PhpException {
+        final OutputChecker checker = new OutputChecker(file);
 
         final int returnCode = execute(
-            arguments,
+            command,
+            file,
+            files,
             new StreamConsumer() {
                 @Override
                 public void consumeLine(String line) {
-                    if (logPhpOutput) {
-                        getLog().info("php.out: " + line);
-                    } else {
-                        getLog().debug("php.out: " + line);
-                    }
-
                     stdout.consumeLine(line);
-
-                    final boolean error = isError(line);
-                    final boolean warning = isWarning(line);
-                    if (error || warning) {
-                        if (isIgnoreIncludeErrors()
-                            && !line.contains("require_once")
-                            && !line.contains("include_once")
-                            ) {
-                            stderr.append(line);
-                            stderr.append("\n");
-                        } else if (!isIgnoreIncludeErrors()) {
-                            stderr.append(line);
-                            stderr.append("\n");
-                        }
-                        if (error) throwError.set(true);
-                        if (warning) throwWarning.set(true);
-                    }
+                    checker.stdoutLine(line);
                 }
             },
             new StreamConsumer() {
                 @Override
                 public void consumeLine(String line) {
-                    stderr.append(line);
-                    stderr.append("\n");
-                    throwError.set(true);
+                    checker.stderrLine(line);
                 }
             }
         );
-        final String error = stderr.toString();
-        if (returnCode == 0 && !throwError.get() && !throwWarning.get()) {
-            return returnCode;
-        } else {
-            String message = "Failed to execute PHP with arguments '" + arguments + "' [Return: " + returnCode + "]";
-            if (error.length() > 0) {
-                message = message + ":\n" + error;
-            }
-
-            if (throwWarning.get()) {
-                throw new PhpWarningException(file, message);
-            } else if (throwError.get()) {
-                throw new PhpErrorException(file, message);
-            } else {
-                throw new PhpCoreException(message);
-            }
-        }
+        return checker.check("Failed to execute PHP " + command, file, returnCode);
     }
 
     /**
@@ -630,20 +1080,152 @@ public abstract class AbstractPhpMojo extends AbstractMojo implements DirectoryW
      * @throws PhpException if the execution failed
      */
     public String execute(String arguments, File file) throws PhpException {
-        final StringBuilder stdout = new StringBuilder();
+        Preconditions.checkNotNull(arguments, "Arguments");
+        return execute(getLauncher().command(splitArguments(arguments)), file);
+    }
+
+    /**
+     * Executes PHP and returns its output.
+     *
+     * @param command the executable and all arguments, see {@link PhpLauncher#command(String...)}
+     * @param file a hint which file will be processed
+     * @return the output string
+     * @throws PhpException if the execution failed
+     */
+    String execute(List<String> command, File file) throws PhpException {
+        return execute(command, file, 1);
+    }
+
+    /**
+     * Executes PHP which handles several files and returns its output.
+     *
+     * @param command the executable and all arguments, see {@link PhpLauncher#command(String...)}
+     * @param file a hint which file will be processed
+     * @param files how many files PHP handles, the timeout is multiplied by it
+     * @return the output string
+     * @throws PhpException if the execution failed
+     */
+    String execute(List<String> command, File file, int files) throws PhpException {
+        final OutputCapture stdout = createOutputCapture(file, "out");
         try {
-            execute(arguments, file, new StreamConsumer() {
+            execute(command, file, files, new StreamConsumer() {
                 @Override
                 public void consumeLine(String line) {
-                    stdout.append(line);
-                    stdout.append("\n");
+                    stdout.appendLine(line);
                 }
             });
         } catch (PhpException e) {
-            e.appendOutput(stdout.toString());
+            e.appendOutput(stdout.finish());
+            throw e;
+        }
+        return stdout.finish().toString();
+    }
+
+    /**
+     * Executes a single PHP file with the given include paths and returns its output. Uses
+     * the PHP workers if configured, a new PHP process otherwise.
+     *
+     * @param file the PHP file to execute
+     * @param includePaths the include paths for the file
+     * @return the output string
+     * @throws PhpException if the execution failed
+     */
+    public String executeFile(File file, String[] includePaths) throws PhpException {
+        final PhpWorkerPool pool = getWorkerPool();
+        if (pool == null) {
+            return execute(getLauncher(includePaths).command(file.getAbsolutePath()), file);
+        }
+
+        final long timeoutMillis = getExecutionTimeout(file, 1);
+        final OutputCapture stdout = createOutputCapture(file, "out");
+        final OutputChecker checker = new OutputChecker(file);
+        final PhpWorker.Result result;
+        try {
+            result = pool.execute(file, includePath(includePaths), new StreamConsumer() {
+                @Override
+                public void consumeLine(String line) {
+                    stdout.appendLine(line);
+                    checker.stdoutLine(line);
+                }
+            }, timeoutMillis);
+        } catch (PhpCoreException e) {
+            if (!isWorkerFallbackToFork()) {
+                throw e;
+            }
+            getLog().warn("PHP workers failed, falling back to one process per file: " + e.getMessage());
+            synchronized (this) {
+                workerPoolBroken = true;
+            }
+            return executeFile(file, includePaths);
+        }
+
+        if (result.isTimedOut()) {
+            final PhpException e = new PhpTimeoutException(file,
+                "Killed PHP worker after " + timeoutMillis + "ms while executing " + file.getAbsolutePath(),
+                timeoutMillis);
+            e.appendOutput(stdout.finish());
+            throw e;
+        }
+        for (String line : result.getErrors()) {
+            checker.stderrLine(line);
+        }
+        try {
+            checker.check("Failed to execute " + file.getAbsolutePath() + " in PHP worker", file,
+                result.getReturnCode());
+        } catch (PhpException e) {
+            e.appendOutput(stdout.finish());
             throw e;
         }
-        return stdout.toString();
+        return stdout.finish().toString();
+    }
+
+    /**
+     * Creates a bounded buffer for the output of a single PHP execution.
+     *
+     * @param file a hint which file will be processed or null
+     * @param stream which output will be captured, used within the name of a spill file
+     * @return the capture
+     */
+    private OutputCapture createOutputCapture(File file, String stream) {
+        final String name = (file == null ? "php" : file.getName()) + "-" + stream;
+        return new OutputCapture(Math.max(2, outputCaptureLimit), getOutputDirectory(), name);
+    }
+
+    /**
+     * Returns the worker pool, starting it if nessecary.
+     *
+     * @return the worker pool or null if files should be executed in their own process
+     * @throws PhpException if the worker script can not be installed
+     */
+    private synchronized PhpWorkerPool getWorkerPool() throws PhpException {
+        if (workerPoolSize <= 0 || workerPoolBroken) {
+            return null;
+        }
+        if (workerPool == null) {
+            final File script = new File(getWorkDirectory(), "PhpWorker.php");
+            try {
+                FileUtils.copyURLToFile(AbstractPhpMojo.class.getResource("PhpWorker.php"), script);
+            } catch (IOException e) {
+                throw new PhpCoreException("Failed to install PHP worker script", e);
+            }
+            workerPool = new PhpWorkerPool(
+                getLauncher().command(script.getAbsolutePath()),
+                workerPoolSize,
+                Math.max(1, workerRecycleAfter),
+                WATCHDOG);
+            getLog().debug("Started PHP worker pool with " + workerPoolSize + " workers");
+        }
+        return workerPool;
+    }
+
+    /**
+     * Stops all PHP workers started by {@link #executeFile(File, String[])}.
+     */
+    protected synchronized void shutdownWorkerPool() {
+        if (workerPool != null) {
+            workerPool.shutdown();
+            workerPool = null;
+        }
     }
 
     /**
@@ -654,14 +1236,30 @@ public abstract class AbstractPhpMojo extends AbstractMojo implements DirectoryW
      * @return the complete parameter for PHP
      */
     public String includePathParameter(String[] paths) {
+        return PHP_FLAG_INCLUDES + "=\"" + includePath(paths) + "\"";
+    }
+
+    /**
+     * Generates the include path value out of the given paths.
+     *
+     * @param paths a list of paths
+     * @return the include path as PHP expects it
+     */
+    public String includePath(String[] paths) {
         final StringBuilder includePath = new StringBuilder();
-        includePath.append(PHP_FLAG_INCLUDES);
-        includePath.append("=\"");
         for (String path : paths) {
             includePath.append(File.pathSeparator);
             includePath.append(path);
+
+            // dependencies used as phar archives follow their directory
+            final List<String> phars = pharIncludePaths.get(new File(path).getAbsolutePath());
+            if (phars != null) {
+                for (String phar : phars) {
+                    includePath.append(File.pathSeparator);
+                    includePath.append(phar);
+                }
+            }
         }
-        includePath.append("\"");
         return includePath.toString();
     }
 
@@ -671,40 +1269,146 @@ public abstract class AbstractPhpMojo extends AbstractMojo implements DirectoryW
      * @return the PHP version
      * @throws PhpException is the php version is not resolvable or supported
      */
-    public final PhpVersion getPhpVersion() throws PhpException {
+    public final synchronized PhpVersion getPhpVersion() throws PhpException {
 
         // already found out?
         if (phpVersion != null) {
             return phpVersion;
         }
 
-        // execute PHP
-        execute(PHP_FLAG_VERSION,
-            (File) null,
-            new StreamConsumer() {
-                @Override
-                public void consumeLine(String line) {
-                    if (phpVersion == null && line.startsWith("PHP")) {
-                        final String version = line.substring(4, 5);
-                        if ("6".equals(version)) {
-                            phpVersion = PhpVersion.PHP6;
-                            getLog().warn("PHP6 is not supported yet!");
-                        } else if ("5".equals(version)) {
-                            phpVersion = PhpVersion.PHP5;
-                        } else if ("4".equals(version)) {
-                            phpVersion = PhpVersion.PHP4;
-                            getLog().warn("PHP4 will not be supported anymore!");
-                        } else {
-                            phpVersion = PhpVersion.UNKNOWN;
-                            getLog().error("Cannot find out PHP version: " + line);
-                        }
+        phpVersion = getPhpRuntime().getPhpVersion();
+        if (phpVersion == PhpVersion.PHP6) {
+            getLog().warn("PHP6 is not supported yet!");
+        } else if (phpVersion == PhpVersion.PHP4) {
+            getLog().warn("PHP4 will not be supported anymore!");
+        } else if (phpVersion == PhpVersion.UNKNOWN) {
+            getLog().error("Cannot find out PHP version: " + getPhpRuntime().getVersion());
+        }
+
+        getLog().debug("PHP version: " + phpVersion.name());
+        return phpVersion;
+    }
+
+    /**
+     * Finds out what the used PHP installation offers. The result is shared by all goals
+     * of the build and stored in the local repository, so PHP is only asked again if the
+     * executable, the additional parameters or the ini files change.
+     *
+     * @return the PHP runtime
+     * @throws PhpException if the runtime can not be found out
+     */
+    public final synchronized PhpRuntime getPhpRuntime() throws PhpException {
+        if (phpRuntime != null) {
+            return phpRuntime;
+        }
+
+        final File executable = resolveExecutable(phpExecutable);
+        final String key = PhpRuntime.key(getLauncher().command(), executable);
+        phpRuntime = PhpRuntime.fromSession(key);
+        if (phpRuntime != null) {
+            return phpRuntime;
+        }
+
+        // the executable has to be known to detect changes of the installation
+        final File cacheFile = executable == null ? null : new File(getRuntimeCacheDirectory(), key + ".properties");
+        if (cacheFile != null) {
+            try {
+                phpRuntime = PhpRuntime.load(cacheFile);
+            } catch (IOException e) {
+                getLog().debug("Failed to read PHP runtime probe " + cacheFile.getAbsolutePath(), e);
+            }
+        }
+
+        if (phpRuntime == null) {
+            final List<String> lines = Lists.newArrayList();
+            execute(getLauncher().command(PHP_FLAG_RUN, PhpRuntime.PROBE_SCRIPT),
+                (File) null,
+                new StreamConsumer() {
+                    @Override
+                    public void consumeLine(String line) {
+                        lines.add(line);
                     }
                 }
+            );
+            phpRuntime = PhpRuntime.parse(lines);
+            if (cacheFile != null) {
+                try {
+                    phpRuntime.save(cacheFile);
+                } catch (IOException e) {
+                    getLog().debug("Failed to store PHP runtime probe " + cacheFile.getAbsolutePath(), e);
+                }
             }
-        );
+        }
 
-        getLog().debug("PHP version: " + phpVersion.name());
-        return phpVersion;
+        PhpRuntime.toSession(key, phpRuntime);
+        getLog().debug("PHP runtime: " + phpRuntime);
+        return phpRuntime;
+    }
+
+    /**
+     * Where the probed PHP runtimes are stored.
+     *
+     * @return the cache directory within the local repository or the working directory
+     */
+    private File getRuntimeCacheDirectory() {
+        return new File(getCacheDirectory(), "runtimes");
+    }
+
+    /**
+     * Where the plugin keeps data shared between builds.
+     *
+     * @return a directory within the local repository or the working directory
+     */
+    private File getCacheDirectory() {
+        if (localRepository != null) {
+            return new File(localRepository.getBasedir(), ".cache/maven-php-plugin");
+        }
+        return getWorkDirectory();
+    }
+
+    /**
+     * Finds the PHP executable like the operating system would do.
+     *
+     * @param name the configured executable
+     * @return the executable or null if it can not be found
+     */
+    private static File resolveExecutable(String name) {
+        final File file = new File(name);
+        if (file.isAbsolute() || name.indexOf('/') >= 0 || name.indexOf(File.separatorChar) >= 0) {
+            return file.isFile() ? file.getAbsoluteFile() : null;
+        }
+
+        final String path = System.getenv("PATH");
+        if (path == null) {
+            return null;
+        }
+        for (String directory : path.split(File.pathSeparator)) {
+            for (String extension : new String[]{"", ".exe", ".bat"}) {
+                final File candidate = new File(directory, name + extension);
+                if (candidate.isFile()) {
+                    return candidate.getAbsoluteFile();
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Loads the persisted include graph and brings it up to date with the given directories.
+     *
+     * @param name file name of the graph within the working directory
+     * @param roots directories with PHP files
+     * @param includePath the include path to resolve includes, see {@link IncludeGraph#CURRENT_DIRECTORY}
+     * @return the up to date graph
+     * @throws IOException if the sources can not be read or the graph can not be stored
+     */
+    IncludeGraph updateIncludeGraph(String name, List<File> roots, String[] includePath) throws IOException {
+        final File graphFile = new File(getWorkDirectory(), name);
+        final IncludeGraph graph = IncludeGraph.load(graphFile, includePath);
+        final Set<String> changed = graph.update(roots, getPhpFileEnding());
+        graph.save(graphFile);
+        getLog().debug("Include graph " + name + ": " + changed.size() + " files changed");
+        return graph;
     }
 
     /**
@@ -714,7 +1418,7 @@ public abstract class AbstractPhpMojo extends AbstractMojo implements DirectoryW
      * @throws PhpException php exceptions can fly everywhere..
      */
     protected void prepareCompileDependencies() throws IOException, PhpException {
-        FileHelper.unzipElements(getDependenciesTargetDirectory(), getCompileClasspathElements());
+        prepareDependencies(getDependenciesTargetDirectory(), getCompileClasspathElements());
     }
 
     /**
@@ -724,7 +1428,191 @@ public abstract class AbstractPhpMojo extends AbstractMojo implements DirectoryW
      * @throws PhpException php exceptions can fly everywhere..
      */
     protected void prepareTestDependencies() throws IOException, PhpException {
-        FileHelper.unzipElements(getTestDependenciesTargetDirectory(), getTestClasspathElements());
+        // tests include the compile dependencies as well, their archives may not be known to this goal
+        if (usePharDependencies && !pharIncludePaths.containsKey(getDependenciesTargetDirectory().getAbsolutePath())) {
+            prepareDependencies(getDependenciesTargetDirectory(), getCompileClasspathElements());
+        }
+        prepareDependencies(getTestDependenciesTargetDirectory(), getTestClasspathElements());
+    }
+
+    /**
+     * Unzips the dependencies into the directory or, with {@link #usePharDependencies},
+     * converts them into phar archives which will follow the directory in include paths.
+     *
+     * @param directory the dependency directory
+     * @param elements the dependency jars
+     * @throws IOException if something goes wrong while prepareing the dependencies
+     * @throws PhpException if phar archives are not supported
+     */
+    private void prepareDependencies(File directory, List<String> elements) throws IOException, PhpException {
+        if (!usePharDependencies) {
+            FileHelper.unzipElements(directory, elements, Runtime.getRuntime().availableProcessors(),
+                getDependencyStore());
+            return;
+        }
+
+        if (!getPhpRuntime().hasExtension("phar")) {
+            throw new PhpCoreException("Dependencies can not be used as phar archives, "
+                + "the PHP extension phar is not loaded");
+        }
+
+        // removes the files unpacked by earlier builds
+        FileHelper.unzipElements(directory, Collections.<String>emptyList());
+
+        final List<String> phars = Lists.newArrayList();
+        for (String element : elements) {
+            final File jar = new File(element);
+            if (jar.isFile()) {
+                final File phar = PharWriter.cached(jar, new File(getCacheDirectory(), "phars"));
+                phars.add(PHAR_PROTOCOL + phar.getAbsolutePath().replace(File.separatorChar, '/'));
+            }
+        }
+        getLog().debug("Using " + phars.size() + " phar archives for " + directory.getAbsolutePath());
+        pharIncludePaths.put(directory.getAbsolutePath(), phars);
+    }
+
+    /**
+     * The shared dependency store.
+     *
+     * @return the store or null if dependencies are unpacked into the modules
+     * @throws PhpException if the link mode is unknown
+     */
+    protected DependencyStore getDependencyStore() throws PhpException {
+        if (!useDependencyStore) {
+            return null;
+        }
+
+        final DependencyStore.LinkMode linkMode;
+        try {
+            linkMode = DependencyStore.parseLinkMode(dependencyLinkMode);
+        } catch (IllegalArgumentException e) {
+            throw new PhpCoreException("Unknown dependency link mode: " + dependencyLinkMode, e);
+        }
+
+        final File directory;
+        if (dependencyStoreDirectory != null) {
+            directory = new File(dependencyStoreDirectory).isAbsolute()
+                ? new File(dependencyStoreDirectory)
+                : new File(getBaseDir(), dependencyStoreDirectory);
+        } else {
+            directory = new File(getCacheDirectory(), "store");
+        }
+        return new DependencyStore(directory, linkMode);
+    }
+
+    /**
+     * Remembers a processed file for {@link #copyScheduledFiles(File, File)}.
+     *
+     * @param file the source file
+     */
+    protected final void scheduleCopy(File file) {
+        filesToCopy.add(file);
+    }
+
+    /**
+     * Copies all files given to {@link #scheduleCopy(File)} in one pass, preserving their relative
+     * subdirectories. An index in the working directory remembers the state of each source at its
+     * last copy, so only changed files and copies deleted or changed in the target directory are
+     * copied. Copies of deleted sources are removed.
+     *
+     * @param sourceDirectory the directory the files are in
+     * @param targetDirectory where to copy the files to
+     * @throws IOException if a file can not be copied
+     */
+    protected final void copyScheduledFiles(File sourceDirectory, File targetDirectory)
+        throws IOException, PhpException {
+
+        final FileHelper.CopyStrategy strategy = getCopyStrategy();
+        final CopyIndex index = CopyIndex.load(
+            new File(getWorkDirectory(), "copy-" + targetDirectory.getName() + ".index"),
+            sourceDirectory.getAbsolutePath() + '\0' + targetDirectory.getAbsolutePath() + '\0' + strategy);
+        if (!targetDirectory.isDirectory() || isForceOverwrite()) {
+            // removed by a clean, nothing was copied yet
+            index.clear();
+        }
+
+        int copied = 0;
+        int skipped = 0;
+        final Set<String> seen = Sets.newHashSet();
+        File file = filesToCopy.poll();
+        while (file != null) {
+            final String path = PathUtils.toRelative(sourceDirectory.getAbsoluteFile(), file.getAbsolutePath());
+            seen.add(path);
+
+            // size and modification time with a single stat
+            final BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+            final long size = attributes.size();
+            final long lastModified = attributes.lastModifiedTime().toMillis();
+            final File target = new File(targetDirectory, path);
+            final CopyIndex.Entry previous = index.get(path);
+            // a deleted or changed copy is placed again
+            final long placed = previous == null ? -1 : getPlacedLastModified(target, size);
+            if (previous != null && previous.isUnchanged(size, lastModified) && placed == lastModified) {
+                skipped++;
+            } else {
+                final String sha1 = CopyIndex.sha1(file);
+                if (previous != null && previous.getSha1().equals(sha1)
+                    && (placed == previous.getLastModified() || placed == lastModified)) {
+                    // only touched, links already have the new modification time
+                    target.setLastModified(lastModified);
+                    skipped++;
+                } else {
+                    FileHelper.placeFile(file, target, strategy);
+                    copied++;
+                }
+                index.put(path, new CopyIndex.Entry(size, lastModified, sha1));
+            }
+            file = filesToCopy.poll();
+        }
+
+        // files not seen during this walk either failed, are excluded now or were deleted
+        int deleted = 0;
+        final Iterator<String> paths = index.getPaths().iterator();
+        while (paths.hasNext()) {
+            final String path = paths.next();
+            if (!seen.contains(path) && !new File(sourceDirectory, path).exists()) {
+                new File(targetDirectory, path).delete();
+                paths.remove();
+                deleted++;
+            }
+        }
+
+        index.save();
+        getLog().info("Copied " + copied + " files to " + targetDirectory.getAbsolutePath()
+            + ", " + skipped + " unchanged, " + deleted + " deleted");
+    }
+
+    /**
+     * Reads the modification time of a placed file, copies keep the modification time of
+     * their source.
+     *
+     * @param target the placed file
+     * @param size the size of the source
+     * @return the modification time or -1 if the file was deleted or has another size
+     * @throws IOException if the file can not be read
+     */
+    private static long getPlacedLastModified(File target, long size) throws IOException {
+        final BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(target.toPath(), BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return -1;
+        }
+        return attributes.size() == size ? attributes.lastModifiedTime().toMillis() : -1;
+    }
+
+    /**
+     * How processed files are placed into the target directories.
+     *
+     * @return the configured strategy
+     * @throws PhpException if the strategy is unknown
+     */
+    protected FileHelper.CopyStrategy getCopyStrategy() throws PhpException {
+        try {
+            return FileHelper.parseCopyStrategy(copyStrategy);
+        } catch (IllegalArgumentException e) {
+            throw new PhpCoreException("Unknown copy strategy: " + copyStrategy, e);
+        }
     }
 
     /**
@@ -754,16 +1642,71 @@ public abstract class AbstractPhpMojo extends AbstractMojo implements DirectoryW
      */
     @Override
     public void directoryWalkStep(int percentage, File file) {
+        if (file.isFile()) {
+            walkStep(file);
+        }
+    }
+
+    /**
+     * Handles a regular file found by the walk, in the walking thread or by the {@link #walkExecutor}.
+     *
+     * @param file the file
+     */
+    private void walkStep(final File file) {
+        if (walkExecutor == null) {
+            final Exception e = handleFile(file);
+            if (e != null) {
+                collectedExceptions.add(e);
+            }
+        } else {
+            pendingFiles.add(walkExecutor.submit(new Callable<Exception>() {
+                @Override
+                public Exception call() {
+                    return handleFile(file);
+                }
+            }));
+        }
+    }
+
+    /**
+     * Calls the file callbacks for a single file.
+     *
+     * @param file the file found by the walk
+     * @return the exception thrown by the callbacks or null
+     */
+    private Exception handleFile(File file) {
         try {
-            if (file.isFile() && file.getName().endsWith("." + getPhpFileEnding()))
+            if (file.getName().endsWith("." + getPhpFileEnding()))
                 handlePhpFile(file);
-            if (file.isFile())
-                handleProcessedFile(file);
+            handleProcessedFile(file);
+            return null;
         /*CHECKSTYLE:OFF*/
         } catch (Exception e) {
         /*CHECKSTYLE:ON*/
             getLog().debug(e);
-            collectedExceptions.add(e);
+            return e;
+        }
+    }
+
+    /**
+     * Waits for all files handed to the {@link #walkExecutor} and collects their
+     * exceptions in walk order.
+     */
+    private void collectPendingFiles() {
+        for (Future<Exception> pending : pendingFiles) {
+            try {
+                final Exception e = pending.get();
+                if (e != null) {
+                    collectedExceptions.add(e);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                collectedExceptions.add(e);
+                return;
+            } catch (ExecutionException e) {
+                // handleFile catches all exceptions, so this is an error
+                throw new IllegalStateException(e.getCause());
+            }
         }
     }
 
@@ -779,27 +1722,128 @@ public abstract class AbstractPhpMojo extends AbstractMojo implements DirectoryW
             return;
         }
 
-        final DirectoryWalker walker = new DirectoryWalker();
-
-        walker.setBaseDir(parentFolder);
-        walker.addDirectoryWalkListener(this);
-        walker.addSCMExcludes();
-
-        for (String exclude : excludes) {
-            walker.addExclude(exclude);
-        }
-        for (String include : includes) {
-            walker.addInclude(include);
-        }
+        final SourceWalker walker = new SourceWalker(Arrays.asList(includes), Arrays.asList(excludes), true);
 
         // new list
         collectedExceptions = Lists.newArrayList();
 
+        final int threadCount = getThreadCount();
+        if (threadCount > 1) {
+            getLog().debug("Handling files with " + threadCount + " threads");
+            // bounded queue, the walker itself helps out if all threads are busy
+            walkExecutor = new ThreadPoolExecutor(threadCount, threadCount, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(threadCount * 2), new ThreadPoolExecutor.CallerRunsPolicy());
+            pendingFiles = Lists.newArrayList();
+        }
+
         // do the action
-        walker.scan();
+        // the execution threads work through the queue while the walk goes on
+        try {
+            IOException walkFailure = null;
+            try {
+                walker.walk(parentFolder, new SourceWalker.Visitor() {
+                    @Override
+                    public void visitFile(File file) {
+                        walkStep(file);
+                    }
+                });
+            } catch (IOException e) {
+                walkFailure = e;
+            }
+            if (walkExecutor != null) {
+                collectPendingFiles();
+            }
+            if (walkFailure != null) {
+                collectedExceptions.add(walkFailure);
+            }
+        } finally {
+            if (walkExecutor != null) {
+                walkExecutor.shutdownNow();
+                walkExecutor = null;
+                pendingFiles = null;
+            }
+        }
 
         if (collectedExceptions.size() != 0) {
             throw new MultiException(collectedExceptions);
         }
     }
+
+    /**
+     * Collects the diagnostics of a single PHP execution and decides if it failed.
+     */
+    private final class OutputChecker {
+        private final OutputCapture stderr;
+        private final List<PhpDiagnostic> diagnostics = Lists.newArrayList();
+        private boolean throwError;
+        private boolean throwWarning;
+
+        OutputChecker(File file) {
+            stderr = createOutputCapture(file, "err");
+        }
+
+        /**
+         * Analyzes a line PHP printed on stdout.
+         *
+         * @param line the output line
+         */
+        synchronized void stdoutLine(String line) {
+            if (logPhpOutput) {
+                getLog().info("php.out: " + line);
+            } else {
+                getLog().debug("php.out: " + line);
+            }
+
+            final PhpDiagnostic.Kind kind = PhpDiagnostic.classify(line);
+            if (kind != PhpDiagnostic.Kind.NONE) {
+                if (!isIgnoreIncludeErrors() || !kind.isInclude()) {
+                    stderr.appendLine(line);
+                    if (diagnostics.size() < MAX_DIAGNOSTICS) {
+                        diagnostics.add(PhpDiagnostic.parse(line));
+                    }
+                }
+                if (kind.isError()) throwError = true;
+                if (kind.isWarning()) throwWarning = true;
+            }
+        }
+
+        /**
+         * Analyzes a line PHP printed on stderr.
+         *
+         * @param line the error line
+         */
+        synchronized void stderrLine(String line) {
+            stderr.appendLine(line);
+            throwError = true;
+        }
+
+        /**
+         * Throws the matching exception if the execution failed.
+         *
+         * @param description what was executed
+         * @param file a hint which file was processed
+         * @param returnCode the return code of PHP
+         * @return the return code
+         * @throws PhpException if the execution failed
+         */
+        synchronized int check(String description, File file, int returnCode) throws PhpException {
+            if (returnCode == 0 && !throwError && !throwWarning) {
+                return returnCode;
+            }
+            final String error = stderr.finish().toString();
+
+            String message = description + " [Return: " + returnCode + "]";
+            if (error.length() > 0) {
+                message = message + ":\n" + error;
+            }
+
+            if (throwWarning) {
+                throw new PhpWarningException(file, message, diagnostics);
+            } else if (throwError) {
+                throw new PhpErrorException(file, message, diagnostics);
+            } else {
+                throw new PhpCoreException(message);
+            }
+        }
+    }
 }
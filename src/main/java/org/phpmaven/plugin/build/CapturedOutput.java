@@ -0,0 +1,89 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.phpmaven.plugin.build;
+
+import java.io.File;
+
+/**
+ * The output of a PHP execution. Large outputs only keep their beginning and end in
+ * memory, the complete output is written to a file.
+ *
+ * @author Tobias Sarnowski
+ */
+public final class CapturedOutput {
+
+    private final String head;
+    private final String tail;
+    private final long omitted;
+    private final File file;
+
+    /**
+     * Creates a captured output.
+     *
+     * @param head the beginning of the output
+     * @param tail the end of the output
+     * @param omitted how many characters between head and tail are not kept in memory
+     * @param file where the complete output was written to or null
+     */
+    CapturedOutput(String head, String tail, long omitted, File file) {
+        this.head = head;
+        this.tail = tail;
+        this.omitted = omitted;
+        this.file = file;
+    }
+
+    /**
+     * Wraps a complete output.
+     *
+     * @param output the output
+     * @return the captured output
+     */
+    public static CapturedOutput of(String output) {
+        return new CapturedOutput(output, "", 0, null);
+    }
+
+    /**
+     * If parts of the output are only available in {@link #getFile()}.
+     *
+     * @return if the output was truncated
+     */
+    public boolean isTruncated() {
+        return omitted > 0;
+    }
+
+    /**
+     * Where the complete output was written to.
+     *
+     * @return the file or null if the complete output is in memory
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * The output, if truncated with a note where to find the complete output.
+     *
+     * @return the output
+     */
+    @Override
+    public String toString() {
+        if (!isTruncated()) {
+            return head + tail;
+        }
+        return head
+            + "\n[... " + omitted + " characters omitted, complete output in " + file.getAbsolutePath() + " ...]\n"
+            + tail;
+    }
+}
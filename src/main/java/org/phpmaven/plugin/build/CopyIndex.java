@@ -0,0 +1,217 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.phpmaven.plugin.build;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Remembers size, modification time and checksum of every source file at the time it
+ * was copied into a target directory, so unchanged files are neither compared with
+ * their copy nor copied again, and copies of deleted sources can be found.
+ *
+ * @author Tobias Sarnowski
+ */
+final class CopyIndex {
+
+    private static final int MAGIC = 0x50484d43;
+    private static final int VERSION = 1;
+    private static final int BUFFER_SIZE = 65536;
+
+    private final File indexFile;
+    private final String configuration;
+    private final Map<String, Entry> entries;
+
+    private CopyIndex(File indexFile, String configuration, Map<String, Entry> entries) {
+        this.indexFile = indexFile;
+        this.configuration = configuration;
+        this.entries = entries;
+    }
+
+    /**
+     * Reads an index.
+     *
+     * @param indexFile where the index is stored
+     * @param configuration source and target of the copies, an index of another configuration is ignored
+     * @return the index, empty if there is none or it can not be read
+     */
+    static CopyIndex load(File indexFile, String configuration) {
+        Preconditions.checkNotNull(indexFile, "Index file");
+        Preconditions.checkNotNull(configuration, "Configuration");
+        final Map<String, Entry> entries = Maps.newHashMap();
+        if (indexFile.isFile()) {
+            try {
+                final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+                try {
+                    if (in.readInt() == MAGIC && in.readInt() == VERSION && configuration.equals(in.readUTF())) {
+                        final int count = in.readInt();
+                        for (int i = 0; i < count; i++) {
+                            final String path = in.readUTF();
+                            entries.put(path, new Entry(in.readLong(), in.readLong(), in.readUTF()));
+                        }
+                    }
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                // corrupt, everything will be copied again
+                entries.clear();
+            }
+        }
+        return new CopyIndex(indexFile, configuration, entries);
+    }
+
+    /**
+     * Writes the index.
+     *
+     * @throws IOException if the index can not be written
+     */
+    void save() throws IOException {
+        indexFile.getParentFile().mkdirs();
+        final File tmp = new File(indexFile.getPath() + ".tmp");
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(configuration);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue().getSize());
+                out.writeLong(entry.getValue().getLastModified());
+                out.writeUTF(entry.getValue().getSha1());
+            }
+        } finally {
+            out.close();
+        }
+        indexFile.delete();
+        if (!tmp.renameTo(indexFile)) {
+            throw new IOException("Could not write " + indexFile.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Forgets all copies, e.g. because the target directory was deleted.
+     */
+    void clear() {
+        entries.clear();
+    }
+
+    Entry get(String path) {
+        return entries.get(path);
+    }
+
+    void put(String path, Entry entry) {
+        entries.put(path, entry);
+    }
+
+    void remove(String path) {
+        entries.remove(path);
+    }
+
+    /**
+     * The copied files.
+     *
+     * @return paths relative to source and target directory
+     */
+    Set<String> getPaths() {
+        return entries.keySet();
+    }
+
+    /**
+     * Calculates the checksum of a file.
+     *
+     * @param file the file
+     * @return the SHA-1 in hex
+     * @throws IOException if the file can not be read
+     */
+    static String sha1(File file) throws IOException {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 not available", e);
+        }
+        final InputStream in = new FileInputStream(file);
+        try {
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            int read = in.read(buffer);
+            while (read != -1) {
+                digest.update(buffer, 0, read);
+                read = in.read(buffer);
+            }
+        } finally {
+            in.close();
+        }
+        final StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(Integer.toHexString((b & 0xff) | 0x100).substring(1));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * The state of a source file when it was copied.
+     */
+    static final class Entry {
+        private final long size;
+        private final long lastModified;
+        private final String sha1;
+
+        Entry(long size, long lastModified, String sha1) {
+            Preconditions.checkNotNull(sha1, "SHA-1");
+            this.size = size;
+            this.lastModified = lastModified;
+            this.sha1 = sha1;
+        }
+
+        /**
+         * Checks size and modification time only.
+         *
+         * @param currentSize the current size of the source file
+         * @param currentLastModified the current modification time of the source file
+         * @return if the file was probably not touched since it was copied
+         */
+        boolean isUnchanged(long currentSize, long currentLastModified) {
+            return currentSize == size && currentLastModified == lastModified;
+        }
+
+        long getSize() {
+            return size;
+        }
+
+        long getLastModified() {
+            return lastModified;
+        }
+
+        String getSha1() {
+            return sha1;
+        }
+    }
+}
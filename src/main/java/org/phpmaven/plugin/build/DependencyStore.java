@@ -0,0 +1,301 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.phpmaven.plugin.build;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Enumeration;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * A store shared by all builds on a machine which holds every file of every unpacked
+ * dependency once, addressed by its content. Each dependency version is extracted
+ * once; the dependency directories of the modules only link to the stored files.
+ * <p/>
+ * Layout: {@code objects/ab/cdef...} holds the file contents by SHA-1,
+ * {@code artifacts/<sha1 of the jar>} lists the files of a jar. Concurrent builds
+ * synchronize the extraction of a jar with a file lock, files only become visible
+ * by atomic renames.
+ * <p/>
+ * Linked files must not be modified, that would change them for every module.
+ *
+ * @author Tobias Sarnowski
+ */
+public final class DependencyStore {
+
+    /**
+     * How files are placed into the dependency directories.
+     */
+    public enum LinkMode {
+        /**
+         * Hard links, copies if the file system does not support them.
+         */
+        HARDLINK,
+        /**
+         * Symbolic links, copies if the file system does not support them.
+         */
+        SYMLINK,
+        /**
+         * Plain copies.
+         */
+        COPY
+    }
+
+    private static final int MAGIC = 0x50484d53;
+    private static final int VERSION = 1;
+    private static final int BUFFER_SIZE = 65536;
+
+    /**
+     * File locks only work between processes, threads of this JVM use these.
+     */
+    private static final ConcurrentMap<String, Object> JVM_LOCKS = new ConcurrentHashMap<String, Object>();
+
+    private final File directory;
+    private final LinkMode linkMode;
+    private volatile boolean linksFailed;
+
+    /**
+     * Opens a store.
+     *
+     * @param directory where the store is located
+     * @param linkMode how files are placed into the dependency directories
+     */
+    public DependencyStore(File directory, LinkMode linkMode) {
+        Preconditions.checkNotNull(directory, "Directory");
+        Preconditions.checkNotNull(linkMode, "Link mode");
+        this.directory = directory;
+        this.linkMode = linkMode;
+    }
+
+    /**
+     * Parses a configured link mode.
+     *
+     * @param name "hardlink", "symlink" or "copy"
+     * @return the link mode
+     * @throws IllegalArgumentException if the name is unknown
+     */
+    public static LinkMode parseLinkMode(String name) {
+        return LinkMode.valueOf(name.trim().toUpperCase(Locale.ENGLISH));
+    }
+
+    /**
+     * Extracts a jar into the store if not done yet.
+     *
+     * @param jar the jar file
+     * @param sha1 checksum of the jar
+     * @return the stored files of the jar by their name within the jar
+     * @throws IOException if the jar can not be extracted
+     */
+    Map<String, File> populate(JarFile jar, String sha1) throws IOException {
+        final File index = new File(new File(directory, "artifacts"), sha1);
+        if (index.isFile()) {
+            return readIndex(index);
+        }
+
+        index.getParentFile().mkdirs();
+        JVM_LOCKS.putIfAbsent(sha1, new Object());
+        synchronized (JVM_LOCKS.get(sha1)) {
+            final RandomAccessFile lockFile = new RandomAccessFile(new File(index.getPath() + ".lock"), "rw");
+            try {
+                final FileLock lock = lockFile.getChannel().lock();
+                try {
+                    // another build may have extracted it while we were waiting
+                    if (index.isFile()) {
+                        return readIndex(index);
+                    }
+                    writeIndex(index, extract(jar));
+                    return readIndex(index);
+                } finally {
+                    lock.release();
+                }
+            } finally {
+                lockFile.close();
+            }
+        }
+    }
+
+    /**
+     * Places a stored file into a dependency directory.
+     *
+     * @param object the stored file
+     * @param target where the file is needed
+     * @throws IOException if the file can neither be linked nor copied
+     */
+    void materialize(File object, File target) throws IOException {
+        target.getParentFile().mkdirs();
+        final Path source = object.toPath();
+        final Path destination = target.toPath();
+
+        if (linkMode != LinkMode.COPY && !linksFailed) {
+            try {
+                if (linkMode == LinkMode.HARDLINK) {
+                    Files.createLink(destination, source);
+                } else {
+                    Files.createSymbolicLink(destination, source);
+                }
+                return;
+            } catch (FileAlreadyExistsException e) {
+                // first one wins
+                return;
+            } catch (IOException e) {
+                // e.g. another file system or no permission, do not try again
+                linksFailed = true;
+            } catch (UnsupportedOperationException e) {
+                linksFailed = true;
+            }
+        }
+
+        try {
+            Files.copy(source, destination);
+        } catch (FileAlreadyExistsException e) {
+            // first one wins
+        }
+    }
+
+    private Map<String, String> extract(JarFile jar) throws IOException {
+        final Map<String, String> objects = Maps.newTreeMap();
+        final File objectDirectory = new File(directory, "objects");
+        objectDirectory.mkdirs();
+
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        final Enumeration<JarEntry> entries = jar.entries();
+        while (entries.hasMoreElements()) {
+            final JarEntry entry = entries.nextElement();
+            if (entry.isDirectory()) {
+                continue;
+            }
+
+            final File tmp = File.createTempFile("object", ".tmp", objectDirectory);
+            final MessageDigest digest = newDigest();
+            final InputStream in = jar.getInputStream(entry);
+            try {
+                final OutputStream out = new DigestOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmp)), digest);
+                try {
+                    int read = in.read(buffer);
+                    while (read != -1) {
+                        out.write(buffer, 0, read);
+                        read = in.read(buffer);
+                    }
+                } finally {
+                    out.close();
+                }
+            } finally {
+                in.close();
+            }
+
+            final String hash = hex(digest.digest());
+            final File object = objectFile(hash);
+            if (object.isFile()) {
+                tmp.delete();
+            } else {
+                object.getParentFile().mkdirs();
+                // stored files are shared, nobody may change them
+                tmp.setReadOnly();
+                try {
+                    Files.move(tmp.toPath(), object.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                } catch (IOException e) {
+                    // stored by a concurrent build in the meantime
+                    tmp.delete();
+                    if (!object.isFile()) {
+                        throw e;
+                    }
+                }
+            }
+            objects.put(entry.getName(), hash);
+        }
+        return objects;
+    }
+
+    private File objectFile(String hash) {
+        return new File(new File(new File(directory, "objects"), hash.substring(0, 2)), hash.substring(2));
+    }
+
+    private Map<String, File> readIndex(File index) throws IOException {
+        final Map<String, File> files = Maps.newHashMap();
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(index)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Unsupported dependency store index " + index.getAbsolutePath());
+            }
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                final String name = in.readUTF();
+                files.put(name, objectFile(in.readUTF()));
+            }
+        } finally {
+            in.close();
+        }
+        return files;
+    }
+
+    private void writeIndex(File index, Map<String, String> objects) throws IOException {
+        final File tmp = new File(index.getPath() + ".tmp");
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(objects.size());
+            for (Map.Entry<String, String> object : objects.entrySet()) {
+                out.writeUTF(object.getKey());
+                out.writeUTF(object.getValue());
+            }
+        } finally {
+            out.close();
+        }
+        Files.move(tmp.toPath(), index.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static String hex(byte[] bytes) {
+        final StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(Integer.toHexString((b & 0xff) | 0x100).substring(1));
+        }
+        return hex.toString();
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 not available", e);
+        }
+    }
+}
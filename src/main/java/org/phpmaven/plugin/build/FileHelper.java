@@ -15,18 +15,33 @@
 package org.phpmaven.plugin.build;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import org.apache.maven.wagon.PathUtils;
-import org.codehaus.plexus.util.FileUtils;
-import org.codehaus.plexus.util.IOUtil;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URI;
+import java.nio.file.Files;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.util.jar.JarInputStream;
@@ -39,6 +54,55 @@ import java.util.jar.JarInputStream;
  */
 public final class FileHelper {
 
+    /**
+     * How files are placed into a target directory.
+     */
+    public enum CopyStrategy {
+        /**
+         * Plain copies.
+         */
+        COPY,
+        /**
+         * Hard links, copies if source and target are on different file systems.
+         */
+        HARDLINK,
+        /**
+         * Copies within the kernel, which let file systems like Btrfs or XFS share the data
+         * blocks if the JVM uses copy_file_range.
+         */
+        REFLINK,
+        /**
+         * Symbolic links, copies if the file system does not support them.
+         */
+        SYMLINK
+    }
+
+    /**
+     * How many entries of a jar file are unpacked by one task.
+     */
+    private static final int UNJAR_CHUNK_SIZE = 256;
+
+    /**
+     * Buffer size used to inflate jar entries.
+     */
+    private static final int COPY_BUFFER_SIZE = 262144;
+
+    /**
+     * One inflate buffer per thread, instead of one per unpacked file.
+     */
+    private static final ThreadLocal<byte[]> COPY_BUFFERS = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[COPY_BUFFER_SIZE];
+        }
+    };
+
+    /**
+     * Directories known to exist, so the parents of many files are checked once per directory.
+     */
+    private static final Set<String> KNOWN_DIRECTORIES =
+        Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
     private FileHelper() {
         // we only have static methods
     }
@@ -55,42 +119,319 @@ public final class FileHelper {
     public static void copyToFolder(File sourceDirectory, File targetDirectory, File sourceFile, boolean forceOverwrite)
         throws IOException {
 
+        copyToFolder(sourceDirectory, targetDirectory, sourceFile, forceOverwrite, CopyStrategy.COPY);
+    }
+
+    /**
+     * Places a file from the sourceDirectory into the targetDirectory perserving its relative subdirectories.
+     *
+     * @param sourceDirectory where the main source directory is
+     * @param targetDirectory where the target directory is
+     * @param sourceFile which file to place into the target directory
+     * @param forceOverwrite if timestamps should be ignored
+     * @param strategy how to place the file
+     * @throws IOException if something goes wrong while copying
+     */
+    public static void copyToFolder(File sourceDirectory, File targetDirectory, File sourceFile,
+        boolean forceOverwrite, CopyStrategy strategy) throws IOException {
+
         final String relativeFile = PathUtils.toRelative(
             sourceDirectory.getAbsoluteFile(),
             sourceFile.getAbsolutePath()
         );
         final File targetFile = new File(targetDirectory, relativeFile);
 
-        if (forceOverwrite) {
-            FileUtils.copyFile(sourceFile, targetFile);
-        } else {
-            FileUtils.copyFileIfModified(sourceFile, targetFile);
+        // copies have the modification time of their source
+        if (forceOverwrite || targetFile.lastModified() < sourceFile.lastModified()) {
+            placeFile(sourceFile, targetFile, strategy);
+        }
+    }
+
+    /**
+     * Parses a configured copy strategy.
+     *
+     * @param name "copy", "hardlink", "reflink" or "symlink"
+     * @return the strategy
+     * @throws IllegalArgumentException if the name is unknown
+     */
+    public static CopyStrategy parseCopyStrategy(String name) {
+        return CopyStrategy.valueOf(name.trim().toUpperCase(Locale.ENGLISH));
+    }
+
+    /**
+     * Places a file into a target directory. Links fall back to copies if the target is on
+     * another file system or links are not supported.
+     *
+     * @param sourceFile the file to place
+     * @param targetFile the copy or link, missing parent directories are created
+     * @param strategy how to place the file
+     * @throws IOException if something goes wrong while copying
+     */
+    public static void placeFile(File sourceFile, File targetFile, CopyStrategy strategy) throws IOException {
+        // writing into an existing link would change the source
+        Files.deleteIfExists(targetFile.toPath());
+
+        if (strategy == CopyStrategy.HARDLINK || strategy == CopyStrategy.SYMLINK) {
+            createParentDirectory(targetFile);
+            try {
+                if (strategy == CopyStrategy.HARDLINK) {
+                    Files.createLink(targetFile.toPath(), sourceFile.toPath());
+                } else {
+                    Files.createSymbolicLink(targetFile.toPath(), sourceFile.getAbsoluteFile().toPath());
+                }
+                return;
+            } catch (IOException e) {
+                // e.g. another file system, copy it
+                Files.deleteIfExists(targetFile.toPath());
+            } catch (UnsupportedOperationException e) {
+                // copy it
+                Files.deleteIfExists(targetFile.toPath());
+            }
+        }
+        copyFile(sourceFile, targetFile);
+    }
+
+    /**
+     * Copies a file within the kernel and gives the copy the modification time of the source.
+     *
+     * @param sourceFile the file to copy
+     * @param targetFile the copy, missing parent directories are created
+     * @throws IOException if something goes wrong while copying
+     */
+    public static void copyFile(File sourceFile, File targetFile) throws IOException {
+        final FileInputStream in = new FileInputStream(sourceFile);
+        try {
+            final FileOutputStream out = openOutput(targetFile);
+            try {
+                final FileChannel source = in.getChannel();
+                final FileChannel target = out.getChannel();
+                final long size = source.size();
+                long position = 0;
+                while (position < size) {
+                    final long transferred = source.transferTo(position, size - position, target);
+                    if (transferred <= 0) {
+                        // truncated while copying
+                        break;
+                    }
+                    position += transferred;
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        targetFile.setLastModified(sourceFile.lastModified());
+    }
+
+    /**
+     * Opens a file for writing, creating its parent directories if they are not known to exist.
+     */
+    private static FileOutputStream openOutput(File file) throws IOException {
+        createParentDirectory(file);
+        try {
+            return new FileOutputStream(file);
+        } catch (FileNotFoundException e) {
+            // the directory was deleted since we created it, e.g. by a clean within the same session
+            KNOWN_DIRECTORIES.remove(file.getAbsoluteFile().getParent());
+            createParentDirectory(file);
+            return new FileOutputStream(file);
         }
     }
 
+    private static void createParentDirectory(File file) throws IOException {
+        final File parent = file.getAbsoluteFile().getParentFile();
+        if (KNOWN_DIRECTORIES.contains(parent.getPath())) {
+            return;
+        }
+        parent.mkdirs();
+        if (!parent.isDirectory()) {
+            throw new IOException("Could not create directory " + parent.getPath());
+        }
+        KNOWN_DIRECTORIES.add(parent.getPath());
+    }
+
     /**
-     * Unzips all files to the given directory (using jar).
+     * Unzips all files to the given directory (using jar). Uses one thread per processor.
      *
      * @param targetDirectory where to unpack the files to
      * @param elements list of files to unpack
      * @throws IOException if something goes wrong while copying
      */
     public static void unzipElements(File targetDirectory, List<String> elements) throws IOException {
+        unzipElements(targetDirectory, elements, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Unzips all files to the given directory (using jar). If more than one element contains
+     * the same file, the first element wins, files already existing are never overwritten.
+     * A manifest within the directory remembers which files each element contributed, so
+     * unchanged elements are skipped and files of removed or updated elements are removed.
+     *
+     * @param targetDirectory where to unpack the files to
+     * @param elements list of files to unpack
+     * @param threads how many files will be unpacked in parallel
+     * @throws IOException if something goes wrong while copying
+     */
+    public static void unzipElements(File targetDirectory, List<String> elements, int threads) throws IOException {
+        unzipElements(targetDirectory, elements, threads, null);
+    }
+
+    /**
+     * Unzips all files to the given directory like {@link #unzipElements(File, List, int)}. With a
+     * store, every jar is extracted into the store once and its files are linked into the directory.
+     *
+     * @param targetDirectory where to unpack the files to
+     * @param elements list of files to unpack
+     * @param threads how many files will be unpacked in parallel
+     * @param store the shared store to take the files from or null to unpack them directly
+     * @throws IOException if something goes wrong while copying
+     */
+    public static void unzipElements(File targetDirectory, List<String> elements, int threads, DependencyStore store)
+        throws IOException {
+
         Preconditions.checkArgument(
             !targetDirectory.exists() || targetDirectory.isDirectory(),
             "Destination Directory");
+        Preconditions.checkArgument(threads > 0, "Threads");
 
         targetDirectory.mkdirs();
         if (!targetDirectory.exists()) {
             throw new IllegalStateException("Could not create target directory " + targetDirectory.getAbsolutePath());
         }
 
+        final UnpackManifest previous = UnpackManifest.load(targetDirectory);
+        final List<File> sources = Lists.newArrayList();
+        final List<UnpackManifest.Jar> fingerprints = Lists.newArrayList();
         for (String element : elements) {
             final File sourceFile = new File(element);
             if (sourceFile.isFile()) {
-                unjar(sourceFile, targetDirectory);
+                sources.add(sourceFile);
+                fingerprints.add(UnpackManifest.fingerprint(sourceFile, previous.getJar(sourceFile.getAbsolutePath())));
+            }
+        }
+
+        if (previous.isUpToDate(fingerprints)) {
+            keepManifestUpToDate(targetDirectory, previous, fingerprints);
+            return;
+        }
+
+        // who contributed a file during the last unpacking
+        final Map<String, UnpackManifest.Jar> previousOwners = Maps.newHashMap();
+        for (UnpackManifest.Jar jar : previous.getJars()) {
+            for (String name : jar.getFiles()) {
+                previousOwners.put(name, jar);
             }
         }
+
+        final List<JarFile> jars = Lists.newArrayList();
+        final List<UnpackManifest.Jar> unpacked = Lists.newArrayList();
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for (File sourceFile : sources) {
+                jars.add(new JarFile(sourceFile));
+            }
+
+            // decide in classpath order which jar provides a file, so the result does not
+            // depend on the order the threads finish
+            final Set<String> assigned = Sets.newHashSet();
+            final List<List<JarEntry>> pending = Lists.newArrayList();
+            for (int i = 0; i < jars.size(); i++) {
+                final JarFile jar = jars.get(i);
+                final UnpackManifest.Jar fingerprint = fingerprints.get(i);
+                final List<String> contributed = Lists.newArrayList();
+                final List<JarEntry> entries = Lists.newArrayList();
+                final Enumeration<JarEntry> items = jar.entries();
+                while (items.hasMoreElements()) {
+                    final JarEntry entry = items.nextElement();
+                    if (!assigned.add(entry.getName())) {
+                        continue;
+                    }
+                    if (entry.isDirectory()) {
+                        new File(targetDirectory, entry.getName()).mkdirs();
+                        continue;
+                    }
+
+                    contributed.add(entry.getName());
+                    final UnpackManifest.Jar owner = previousOwners.remove(entry.getName());
+                    if (owner != null && owner.isSameContent(fingerprint)) {
+                        // unpacked by the last run
+                        continue;
+                    }
+                    if (owner != null) {
+                        // unpacked from another or an updated jar
+                        new File(targetDirectory, entry.getName()).delete();
+                    }
+                    entries.add(entry);
+                }
+                pending.add(entries);
+                unpacked.add(fingerprint.withFiles(contributed));
+            }
+
+            // contributed by removed or updated jars, but not provided anymore
+            for (String name : previousOwners.keySet()) {
+                new File(targetDirectory, name).delete();
+            }
+
+            // with a store, every jar has to be extracted into it before its files can be linked
+            final List<Future<Map<String, File>>> stored = Lists.newArrayList();
+            for (int i = 0; i < jars.size(); i++) {
+                if (store == null || pending.get(i).isEmpty()) {
+                    stored.add(null);
+                } else {
+                    stored.add(executor.submit(new PopulateTask(store, jars.get(i), fingerprints.get(i).getSha1())));
+                }
+            }
+
+            final List<Future<Void>> results = Lists.newArrayList();
+            for (int i = 0; i < jars.size(); i++) {
+                final Map<String, File> objects = stored.get(i) == null ? null : stored.get(i).get();
+                final List<JarEntry> entries = pending.get(i);
+                for (int start = 0; start < entries.size(); start += UNJAR_CHUNK_SIZE) {
+                    final List<JarEntry> chunk =
+                        entries.subList(start, Math.min(entries.size(), start + UNJAR_CHUNK_SIZE));
+                    results.add(executor.submit(new UnjarTask(jars.get(i), chunk, targetDirectory, store, objects)));
+                }
+            }
+            for (Future<Void> result : results) {
+                result.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while unpacking to " + targetDirectory.getAbsolutePath());
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IllegalStateException("Failed to unpack to " + targetDirectory.getAbsolutePath(), e.getCause());
+        } finally {
+            executor.shutdownNow();
+            for (JarFile jar : jars) {
+                jar.close();
+            }
+        }
+
+        new UnpackManifest(unpacked).save(targetDirectory);
+    }
+
+    /**
+     * Stores new modification times of jars with unchanged content, so their checksums
+     * do not have to be calculated again.
+     */
+    private static void keepManifestUpToDate(File targetDirectory, UnpackManifest previous,
+        List<UnpackManifest.Jar> fingerprints) throws IOException {
+
+        boolean touched = false;
+        final List<UnpackManifest.Jar> jars = Lists.newArrayList();
+        for (int i = 0; i < fingerprints.size(); i++) {
+            final UnpackManifest.Jar before = previous.getJars().get(i);
+            final UnpackManifest.Jar now = fingerprints.get(i);
+            touched |= before.getSize() != now.getSize() || before.getLastModified() != now.getLastModified();
+            jars.add(now.withFiles(before.getFiles()));
+        }
+        if (touched) {
+            new UnpackManifest(jars).save(targetDirectory);
+        }
     }
 
     /**
@@ -104,11 +445,19 @@ public final class FileHelper {
         Preconditions.checkNotNull(jarFile, "JarFile");
 
         final JarFile jar = new JarFile(jarFile);
-
-        final Enumeration<JarEntry> items = jar.entries();
-        while (items.hasMoreElements()) {
-            final JarEntry entry = items.nextElement();
-            unpackJarEntry(entry, jar.getInputStream(entry), destDir);
+        try {
+            final Enumeration<JarEntry> items = jar.entries();
+            while (items.hasMoreElements()) {
+                final JarEntry entry = items.nextElement();
+                final InputStream in = jar.getInputStream(entry);
+                try {
+                    unpackJarEntry(entry, in, destDir);
+                } finally {
+                    in.close();
+                }
+            }
+        } finally {
+            jar.close();
         }
     }
 
@@ -175,12 +524,81 @@ public final class FileHelper {
             return;
         }
 
-        OutputStream out = null;
+        // an interrupted build must not leave a partial file which would never be replaced;
+        // parents may be missing if the jar has no directory entries
+        final File tmpFile = new File(destFile.getPath() + ".unpack");
+        final OutputStream out = openOutput(tmpFile);
         try {
-            out = new FileOutputStream(destFile);
-            IOUtil.copy(jarEntryInputStream, out);
+            final byte[] buffer = COPY_BUFFERS.get();
+            int read = jarEntryInputStream.read(buffer);
+            while (read != -1) {
+                out.write(buffer, 0, read);
+                read = jarEntryInputStream.read(buffer);
+            }
         } finally {
-            if (out != null) out.close();
+            out.close();
+        }
+        if (!tmpFile.renameTo(destFile)) {
+            tmpFile.delete();
+            throw new IOException("Failed to unpack " + destFile.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Unpacks a part of the entries of a jar file.
+     */
+    private static final class UnjarTask implements Callable<Void> {
+        private final JarFile jar;
+        private final List<JarEntry> entries;
+        private final File destDir;
+        private final DependencyStore store;
+        private final Map<String, File> objects;
+
+        private UnjarTask(JarFile jar, List<JarEntry> entries, File destDir, DependencyStore store,
+            Map<String, File> objects) {
+
+            this.jar = jar;
+            this.entries = entries;
+            this.destDir = destDir;
+            this.store = store;
+            this.objects = objects;
+        }
+
+        @Override
+        public Void call() throws IOException {
+            for (JarEntry entry : entries) {
+                if (objects != null && objects.containsKey(entry.getName())) {
+                    store.materialize(objects.get(entry.getName()), new File(destDir, entry.getName()));
+                    continue;
+                }
+                final InputStream in = jar.getInputStream(entry);
+                try {
+                    unpackJarEntry(entry, in, destDir);
+                } finally {
+                    in.close();
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Extracts a jar into the dependency store.
+     */
+    private static final class PopulateTask implements Callable<Map<String, File>> {
+        private final DependencyStore store;
+        private final JarFile jar;
+        private final String sha1;
+
+        private PopulateTask(DependencyStore store, JarFile jar, String sha1) {
+            this.store = store;
+            this.jar = jar;
+            this.sha1 = sha1;
+        }
+
+        @Override
+        public Map<String, File> call() throws IOException {
+            return store.populate(jar, sha1);
         }
     }
 }
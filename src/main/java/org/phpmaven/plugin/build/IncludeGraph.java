@@ -0,0 +1,488 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.phpmaven.plugin.build;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.codehaus.plexus.util.FileUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The include/require graph of PHP sources. Every file is scanned for include,
+ * include_once, require and require_once statements with a literal path. The
+ * graph is persisted and only files with a changed size or timestamp are scanned
+ * again.
+ *
+ * Includes are resolved like PHP does: paths relative to dirname(__FILE__) or
+ * __DIR__ relative to the including file, paths starting with "./" or "../"
+ * relative to the working directory PHP is started in (the one of the build),
+ * absolute paths as they are and everything else along the include path. Scripts
+ * may change their working directory, so "./" and "../" includes which exist
+ * relative to the including file count as well; a dependency too many only costs
+ * an additional test run, a missing one a missed test. The include path entry "."
+ * stands for the directory of the including file. Includes built from variables
+ * can not be resolved and are ignored.
+ *
+ * @author Tobias Sarnowski
+ */
+final class IncludeGraph {
+
+    /**
+     * Include path entry which stands for the directory of the including file.
+     */
+    static final String CURRENT_DIRECTORY = ".";
+
+    private static final int MAGIC = 0x50484d47;
+    private static final int VERSION = 2;
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final Pattern INCLUDE = Pattern.compile(
+        "\\b(?:require|include)(?:_once)?\\s*\\(?\\s*"
+            + "((?:dirname\\s*\\(\\s*__FILE__\\s*\\)|__DIR__)\\s*\\.\\s*)?"
+            + "(['\"])([^'\"$]+)\\2",
+        Pattern.CASE_INSENSITIVE);
+
+    private static final byte KIND_INCLUDE_PATH = 0;
+    private static final byte KIND_FILE_DIRECTORY = 1;
+    private static final byte KIND_ABSOLUTE = 2;
+    private static final byte KIND_WORKING_DIRECTORY = 3;
+
+    private final String[] includePath;
+
+    /**
+     * PHP is started without an own working directory, it inherits the one of the build.
+     */
+    private final String workingDirectory = new File("").getAbsolutePath();
+    private final Map<String, Node> nodes = Maps.newHashMap();
+    private Map<String, Set<String>> reverse;
+
+    /**
+     * Creates an empty graph.
+     *
+     * @param includePath the include path to resolve includes with
+     */
+    IncludeGraph(String[] includePath) {
+        Preconditions.checkNotNull(includePath, "Include path");
+        this.includePath = includePath.clone();
+    }
+
+    /**
+     * Loads a persisted graph. Returns an empty graph if there is none or it was built
+     * with another include path.
+     *
+     * @param graphFile where the graph is stored
+     * @param includePath the include path to resolve includes with
+     * @return the graph
+     */
+    static IncludeGraph load(File graphFile, String[] includePath) {
+        final IncludeGraph graph = new IncludeGraph(includePath);
+        try {
+            graph.read(graphFile);
+        } catch (FileNotFoundException e) {
+            // first run
+            graph.nodes.clear();
+        } catch (IOException e) {
+            // corrupt or from another version, start over
+            graph.nodes.clear();
+        }
+        return graph;
+    }
+
+    /**
+     * Brings the graph up to date with the files under the given directories. Only
+     * new files and files with a changed size or timestamp are scanned.
+     *
+     * @param roots the directories to scan
+     * @param phpFileEnding the ending of PHP files (without the dot)
+     * @return the paths of all new, changed and removed files
+     * @throws IOException if a file can not be read
+     */
+    synchronized Set<String> update(List<File> roots, String phpFileEnding) throws IOException {
+        final List<File> files = Lists.newArrayList();
+        for (File root : roots) {
+            collect(root, "." + phpFileEnding, files);
+        }
+
+        final Set<String> changed = Sets.newHashSet();
+        final Set<String> seen = Sets.newHashSet();
+        for (File file : files) {
+            final String path = file.getAbsolutePath();
+            seen.add(path);
+            final Node node = nodes.get(path);
+            if (node == null || node.size != file.length() || node.lastModified != file.lastModified()) {
+                final Node scanned = scan(file);
+                if (node == null || !Arrays.equals(node.hash, scanned.hash)) {
+                    changed.add(path);
+                }
+                nodes.put(path, scanned);
+            }
+        }
+        for (String path : Lists.newArrayList(nodes.keySet())) {
+            if (!seen.contains(path)) {
+                nodes.remove(path);
+                changed.add(path);
+            }
+        }
+        invalidate();
+        return changed;
+    }
+
+    /**
+     * Brings a single file up to date, e.g. after it was changed.
+     *
+     * @param file the changed or removed file
+     * @return if the content of the file changed
+     * @throws IOException if the file can not be read
+     */
+    synchronized boolean update(File file) throws IOException {
+        final String path = file.getAbsolutePath();
+        final Node node = nodes.get(path);
+        invalidate();
+        if (!file.isFile()) {
+            return nodes.remove(path) != null;
+        }
+        final Node scanned = scan(file);
+        nodes.put(path, scanned);
+        return node == null || !Arrays.equals(node.hash, scanned.hash);
+    }
+
+    /**
+     * If the file is part of the graph.
+     *
+     * @param file the file to check
+     * @return if the file is known
+     */
+    synchronized boolean contains(File file) {
+        return nodes.containsKey(file.getAbsolutePath());
+    }
+
+    /**
+     * The content hash of a file of the graph.
+     *
+     * @param path absolute path of the file
+     * @return the SHA-1 hash or null if the file is unknown
+     */
+    synchronized byte[] getHash(String path) {
+        final Node node = nodes.get(path);
+        return node == null ? null : node.hash;
+    }
+
+    /**
+     * The content hashes of all files of the graph.
+     *
+     * @return absolute paths mapped to their SHA-1 hashes
+     */
+    synchronized Map<String, byte[]> getHashes() {
+        final Map<String, byte[]> hashes = Maps.newHashMap();
+        for (Map.Entry<String, Node> entry : nodes.entrySet()) {
+            hashes.put(entry.getKey(), entry.getValue().hash);
+        }
+        return hashes;
+    }
+
+    /**
+     * All files the given file directly includes (as far as they are part of the graph).
+     *
+     * @param path absolute path of the file
+     * @return absolute paths of the included files
+     */
+    synchronized Set<String> getIncludes(String path) {
+        final Node node = nodes.get(path);
+        if (node == null) {
+            return Collections.emptySet();
+        }
+        if (node.resolved == null) {
+            node.resolved = resolve(path, node);
+        }
+        return node.resolved;
+    }
+
+    /**
+     * All files the given file includes directly or indirectly.
+     *
+     * @param path absolute path of the file
+     * @return absolute paths of the included files, sorted
+     */
+    synchronized Set<String> getTransitiveIncludes(String path) {
+        final Set<String> result = Sets.newTreeSet();
+        final List<String> queue = Lists.newArrayList(getIncludes(path));
+        while (!queue.isEmpty()) {
+            final String next = queue.remove(queue.size() - 1);
+            if (result.add(next)) {
+                queue.addAll(getIncludes(next));
+            }
+        }
+        result.remove(path);
+        return result;
+    }
+
+    /**
+     * All files which include one of the given files directly or indirectly.
+     *
+     * @param paths absolute paths of the included files
+     * @return absolute paths of the including files (without the given ones)
+     */
+    synchronized Set<String> getDependents(Set<String> paths) {
+        if (reverse == null) {
+            reverse = Maps.newHashMap();
+            for (String path : nodes.keySet()) {
+                for (String included : getIncludes(path)) {
+                    Set<String> includers = reverse.get(included);
+                    if (includers == null) {
+                        includers = Sets.newHashSet();
+                        reverse.put(included, includers);
+                    }
+                    includers.add(path);
+                }
+            }
+        }
+
+        final Set<String> result = Sets.newHashSet();
+        final List<String> queue = Lists.newArrayList(paths);
+        while (!queue.isEmpty()) {
+            final Set<String> includers = reverse.get(queue.remove(queue.size() - 1));
+            if (includers == null) {
+                continue;
+            }
+            for (String includer : includers) {
+                if (result.add(includer)) {
+                    queue.add(includer);
+                }
+            }
+        }
+        result.removeAll(paths);
+        return result;
+    }
+
+    /**
+     * Stores the graph.
+     *
+     * @param graphFile where to store the graph
+     * @throws IOException if the graph can not be written
+     */
+    void save(File graphFile) throws IOException {
+        graphFile.getParentFile().mkdirs();
+        final File tempFile = new File(graphFile.getAbsolutePath() + ".tmp");
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(Arrays.toString(includePath));
+            out.writeInt(nodes.size());
+            for (Map.Entry<String, Node> entry : nodes.entrySet()) {
+                final Node node = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeLong(node.size);
+                out.writeLong(node.lastModified);
+                out.write(node.hash);
+                out.writeInt(node.kinds.length);
+                for (int i = 0; i < node.kinds.length; i++) {
+                    out.writeByte(node.kinds[i]);
+                    out.writeUTF(node.includes[i]);
+                }
+            }
+        } finally {
+            out.close();
+        }
+        graphFile.delete();
+        if (!tempFile.renameTo(graphFile)) {
+            throw new IOException("Could not write " + graphFile.getAbsolutePath());
+        }
+    }
+
+    private void read(File graphFile) throws IOException {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(graphFile)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION
+                || !Arrays.toString(includePath).equals(in.readUTF())) {
+                return;
+            }
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                final String path = in.readUTF();
+                final long size = in.readLong();
+                final long lastModified = in.readLong();
+                final byte[] hash = new byte[20];
+                in.readFully(hash);
+                final int includeCount = in.readInt();
+                final byte[] kinds = new byte[includeCount];
+                final String[] includes = new String[includeCount];
+                for (int j = 0; j < includeCount; j++) {
+                    kinds[j] = in.readByte();
+                    includes[j] = in.readUTF();
+                }
+                nodes.put(path, new Node(size, lastModified, hash, kinds, includes));
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private void invalidate() {
+        reverse = null;
+        for (Node node : nodes.values()) {
+            node.resolved = null;
+        }
+    }
+
+    private Set<String> resolve(String path, Node node) {
+        final String directory = new File(path).getParent();
+        final Set<String> resolved = Sets.newHashSet();
+        for (int i = 0; i < node.kinds.length; i++) {
+            final String include = node.includes[i];
+            final String target;
+            if (node.kinds[i] == KIND_ABSOLUTE) {
+                target = normalize(include);
+            } else if (node.kinds[i] == KIND_FILE_DIRECTORY) {
+                target = normalize(directory + "/" + include);
+            } else if (node.kinds[i] == KIND_WORKING_DIRECTORY) {
+                target = normalize(workingDirectory + "/" + include);
+                // in case the script changed its working directory
+                final String besideFile = normalize(directory + "/" + include);
+                if (besideFile != null && nodes.containsKey(besideFile)) {
+                    resolved.add(besideFile);
+                }
+            } else {
+                target = resolveIncludePath(directory, include);
+            }
+            if (target != null && nodes.containsKey(target)) {
+                resolved.add(target);
+            }
+        }
+        return resolved;
+    }
+
+    private String resolveIncludePath(String directory, String include) {
+        for (String entry : includePath) {
+            final String base = CURRENT_DIRECTORY.equals(entry) ? directory : entry;
+            final String candidate = normalize(base + "/" + include);
+            if (candidate != null && nodes.containsKey(candidate)) {
+                return candidate;
+            }
+        }
+        // PHP falls back to the directory of the including script
+        return normalize(directory + "/" + include);
+    }
+
+    private static String normalize(String path) {
+        final String normalized = FileUtils.normalize(path.replace('\\', '/'));
+        return normalized == null ? null : new File(normalized).getAbsolutePath();
+    }
+
+    private static Node scan(File file) throws IOException {
+        final MessageDigest digest = newDigest();
+        final ByteArrayOutputStream content = new ByteArrayOutputStream((int) file.length());
+        final InputStream in = new FileInputStream(file);
+        try {
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            int read = in.read(buffer);
+            while (read != -1) {
+                digest.update(buffer, 0, read);
+                content.write(buffer, 0, read);
+                read = in.read(buffer);
+            }
+        } finally {
+            in.close();
+        }
+
+        final List<Byte> kinds = Lists.newArrayList();
+        final List<String> includes = Lists.newArrayList();
+        final Matcher matcher = INCLUDE.matcher(content.toString("ISO-8859-1"));
+        while (matcher.find()) {
+            final String include = matcher.group(3).replace('\\', '/');
+            if (matcher.group(1) != null) {
+                kinds.add(KIND_FILE_DIRECTORY);
+            } else if (include.startsWith("/") || include.matches("^[a-zA-Z]:/.*")) {
+                kinds.add(KIND_ABSOLUTE);
+            } else if (include.startsWith("./") || include.startsWith("../")) {
+                kinds.add(KIND_WORKING_DIRECTORY);
+            } else {
+                kinds.add(KIND_INCLUDE_PATH);
+            }
+            includes.add(include);
+        }
+
+        final byte[] kindArray = new byte[kinds.size()];
+        for (int i = 0; i < kindArray.length; i++) {
+            kindArray[i] = kinds.get(i);
+        }
+        return new Node(file.length(), file.lastModified(), digest.digest(), kindArray,
+            includes.toArray(new String[includes.size()]));
+    }
+
+    private static void collect(File directory, String ending, List<File> files) {
+        final File[] children = directory.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            if (child.isDirectory()) {
+                collect(child, ending, files);
+            } else if (child.getName().endsWith(ending)) {
+                files.add(child.getAbsoluteFile());
+            }
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 not supported", e);
+        }
+    }
+
+    /**
+     * A scanned file.
+     */
+    private static final class Node {
+        private final long size;
+        private final long lastModified;
+        private final byte[] hash;
+        private final byte[] kinds;
+        private final String[] includes;
+        private Set<String> resolved;
+
+        private Node(long size, long lastModified, byte[] hash, byte[] kinds, String[] includes) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+            this.kinds = kinds;
+            this.includes = includes;
+        }
+    }
+}
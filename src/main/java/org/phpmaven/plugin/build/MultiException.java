@@ -14,6 +14,7 @@
 
 package org.phpmaven.plugin.build;
 
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -30,6 +31,15 @@ public class MultiException extends PhpException {
         this.exceptions = exceptions;
     }
 
+    /**
+     * The collected exceptions.
+     *
+     * @return all exceptions
+     */
+    public List<Exception> getExceptions() {
+        return Collections.unmodifiableList(exceptions);
+    }
+
     @Override
     public String getMessage() {
         if (exceptions.size() == 1) {
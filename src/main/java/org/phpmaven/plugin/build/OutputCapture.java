@@ -0,0 +1,174 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.phpmaven.plugin.build;
+
+import com.google.common.base.Preconditions;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * Collects output lines with a bounded amount of memory. Up to the limit everything
+ * is kept in memory. Beyond the limit only the beginning and a ring buffer with the
+ * end are kept and the complete output is written to a file.
+ *
+ * @author Tobias Sarnowski
+ */
+final class OutputCapture {
+
+    private static final int MIN_TAIL_CAPACITY = 256;
+
+    private final File directory;
+    private final String name;
+    private final StringBuilder head = new StringBuilder();
+    private final int headLimit;
+    private final int tailLimit;
+
+    /**
+     * Grows up to {@link #tailLimit} once the head is full, most executions never need it.
+     */
+    private char[] tail = new char[0];
+    private int tailStart;
+    private int tailLength;
+    private long total;
+    private File file;
+    private Writer writer;
+    private boolean failed;
+
+    /**
+     * Creates a new capture.
+     *
+     * @param limit how many characters will be kept in memory
+     * @param directory where to write large outputs to
+     * @param name a hint for the name of the output file
+     */
+    OutputCapture(int limit, File directory, String name) {
+        Preconditions.checkArgument(limit > 1, "Limit");
+        this.directory = directory;
+        this.name = name;
+        this.headLimit = limit / 2;
+        this.tailLimit = limit - headLimit;
+    }
+
+    /**
+     * Adds a line of output.
+     *
+     * @param line the line without line break
+     */
+    synchronized void appendLine(String line) {
+        append(line);
+        append("\n");
+    }
+
+    /**
+     * Number of captured characters.
+     *
+     * @return the complete length of the output
+     */
+    synchronized long length() {
+        return total;
+    }
+
+    /**
+     * Finishes the capture.
+     *
+     * @return the output
+     */
+    synchronized CapturedOutput finish() {
+        closeWriter();
+        final long omitted = total - head.length() - tailLength;
+        return new CapturedOutput(head.toString(), tailToString(), omitted, failed ? null : file);
+    }
+
+    private void append(String text) {
+        total += text.length();
+        if (writer != null) {
+            write(text);
+        } else if (!failed && total > headLimit + tailLimit) {
+            // from now on, the complete output goes to the file
+            spill();
+            write(text);
+        }
+
+        int offset = 0;
+        if (head.length() < headLimit) {
+            offset = Math.min(text.length(), headLimit - head.length());
+            head.append(text, 0, offset);
+        }
+        for (int i = offset; i < text.length(); i++) {
+            if (tailLength < tailLimit) {
+                // the ring only starts to turn when it is full, until then tailStart is 0
+                if (tailLength == tail.length) {
+                    tail = Arrays.copyOf(tail, Math.min(tailLimit, Math.max(MIN_TAIL_CAPACITY, tail.length * 2)));
+                }
+                tail[tailLength] = text.charAt(i);
+                tailLength++;
+            } else {
+                tail[tailStart] = text.charAt(i);
+                tailStart = (tailStart + 1) % tail.length;
+            }
+        }
+    }
+
+    private void spill() {
+        try {
+            directory.mkdirs();
+            file = File.createTempFile(name.replaceAll("[^a-zA-Z0-9_.-]", "_") + "-", ".log", directory);
+            writer = new BufferedWriter(new FileWriter(file));
+            writer.write(head.toString());
+            writer.write(tailToString());
+        } catch (IOException e) {
+            // keep the in memory part, the output just gets truncated
+            failed = true;
+            closeWriter();
+        }
+    }
+
+    private void write(String text) {
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.write(text);
+        } catch (IOException e) {
+            failed = true;
+            closeWriter();
+        }
+    }
+
+    private void closeWriter() {
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.close();
+        } catch (IOException e) {
+            failed = true;
+        }
+        writer = null;
+    }
+
+    private String tailToString() {
+        final StringBuilder text = new StringBuilder(tailLength);
+        for (int i = 0; i < tailLength; i++) {
+            text.append(tail[(tailStart + i) % tail.length]);
+        }
+        return text.toString();
+    }
+}
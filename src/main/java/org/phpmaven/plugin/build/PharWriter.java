@@ -0,0 +1,213 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.phpmaven.plugin.build;
+
+import com.google.common.collect.Lists;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.zip.CRC32;
+
+/**
+ * Converts a jar into an uncompressed phar archive. The archive is written directly,
+ * so PHP does not need "phar.readonly=0".
+ *
+ * @author Tobias Sarnowski
+ */
+final class PharWriter {
+
+    private static final String STUB = "<?php __HALT_COMPILER(); ?>\r\n";
+
+    /**
+     * Manifest API version 1.1.1.
+     */
+    private static final int API_VERSION = 0x1110;
+
+    private static final int FLAG_HAS_SIGNATURE = 0x00010000;
+    private static final int SIGNATURE_SHA1 = 0x0002;
+    private static final int FILE_PERMISSIONS = 0644;
+    private static final byte[] SIGNATURE_MAGIC = new byte[]{'G', 'B', 'M', 'B'};
+    private static final int BUFFER_SIZE = 65536;
+
+    private PharWriter() {
+        // we only have static methods
+    }
+
+    /**
+     * Returns the phar archive of a jar, converting the jar if it was not converted before.
+     * The archive is identified by path, size and modification time of the jar.
+     *
+     * @param jarFile the jar
+     * @param cacheDirectory where converted archives are kept
+     * @return the phar archive
+     * @throws IOException if the jar can not be converted
+     */
+    static File cached(File jarFile, File cacheDirectory) throws IOException {
+        final String identity = jarFile.getAbsolutePath() + '\0' + jarFile.length() + '\0' + jarFile.lastModified();
+        final StringBuilder name = new StringBuilder(jarFile.getName().replaceAll("\\.jar$", ""));
+        name.append('-');
+        for (byte b : newDigest().digest(identity.getBytes("UTF-8"))) {
+            name.append(Integer.toHexString((b & 0xff) | 0x100).substring(1));
+        }
+        name.append(".phar");
+
+        final File pharFile = new File(cacheDirectory, name.toString());
+        if (!pharFile.isFile()) {
+            convert(jarFile, pharFile);
+        }
+        return pharFile;
+    }
+
+    /**
+     * Writes all files of a jar into a phar archive.
+     *
+     * @param jarFile the jar to convert
+     * @param pharFile the archive to write, replaced atomically
+     * @throws IOException if the jar can not be read or the archive can not be written
+     */
+    static void convert(File jarFile, File pharFile) throws IOException {
+        pharFile.getParentFile().mkdirs();
+        final File tmp = File.createTempFile(pharFile.getName(), ".tmp", pharFile.getParentFile());
+        final JarFile jar = new JarFile(jarFile);
+        try {
+            final List<JarEntry> entries = Lists.newArrayList();
+            final Enumeration<JarEntry> items = jar.entries();
+            while (items.hasMoreElements()) {
+                final JarEntry entry = items.nextElement();
+                if (!entry.isDirectory()) {
+                    entries.add(entry);
+                }
+            }
+
+            final MessageDigest digest = newDigest();
+            final OutputStream out = new DigestOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp), BUFFER_SIZE), digest);
+            try {
+                out.write(STUB.getBytes("ISO-8859-1"));
+                writeManifest(out, jar, entries);
+                final byte[] buffer = new byte[BUFFER_SIZE];
+                for (JarEntry entry : entries) {
+                    copy(jar, entry, out, buffer);
+                }
+                out.flush();
+
+                // the signature covers everything before it
+                final byte[] signature = digest.digest();
+                out.write(signature);
+                writeInt(out, SIGNATURE_SHA1);
+                out.write(SIGNATURE_MAGIC);
+            } finally {
+                out.close();
+            }
+            Files.move(tmp.toPath(), pharFile.toPath(),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            jar.close();
+            tmp.delete();
+        }
+    }
+
+    private static void writeManifest(OutputStream out, JarFile jar, List<JarEntry> entries) throws IOException {
+        final ByteArrayOutputStream manifest = new ByteArrayOutputStream();
+        writeInt(manifest, entries.size());
+        manifest.write((API_VERSION >> 8) & 0xff);
+        manifest.write(API_VERSION & 0xf0);
+        writeInt(manifest, FLAG_HAS_SIGNATURE);
+        // no alias, no metadata
+        writeInt(manifest, 0);
+        writeInt(manifest, 0);
+
+        for (JarEntry entry : entries) {
+            long size = entry.getSize();
+            long crc = entry.getCrc();
+            if (size < 0 || crc < 0) {
+                // not in the central directory, read the entry
+                final CRC32 checksum = new CRC32();
+                size = 0;
+                final byte[] buffer = new byte[BUFFER_SIZE];
+                final InputStream in = jar.getInputStream(entry);
+                try {
+                    int read = in.read(buffer);
+                    while (read != -1) {
+                        checksum.update(buffer, 0, read);
+                        size += read;
+                        read = in.read(buffer);
+                    }
+                } finally {
+                    in.close();
+                }
+                crc = checksum.getValue();
+            }
+
+            final byte[] name = entry.getName().getBytes("UTF-8");
+            writeInt(manifest, name.length);
+            manifest.write(name);
+            writeInt(manifest, (int) size);
+            writeInt(manifest, (int) (Math.max(0, entry.getTime()) / 1000));
+            writeInt(manifest, (int) size);
+            writeInt(manifest, (int) crc);
+            writeInt(manifest, FILE_PERMISSIONS);
+            writeInt(manifest, 0);
+        }
+
+        writeInt(out, manifest.size());
+        manifest.writeTo(out);
+    }
+
+    private static void copy(JarFile jar, JarEntry entry, OutputStream out, byte[] buffer) throws IOException {
+        final InputStream in = jar.getInputStream(entry);
+        try {
+            int read = in.read(buffer);
+            while (read != -1) {
+                out.write(buffer, 0, read);
+                read = in.read(buffer);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Phar archives use little endian numbers.
+     */
+    private static void writeInt(OutputStream out, int value) throws IOException {
+        out.write(value & 0xff);
+        out.write((value >> 8) & 0xff);
+        out.write((value >> 16) & 0xff);
+        out.write((value >> 24) & 0xff);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 not available", e);
+        }
+    }
+}
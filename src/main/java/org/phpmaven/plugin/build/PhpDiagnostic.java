@@ -0,0 +1,249 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.phpmaven.plugin.build;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An error or warning message printed by PHP, like
+ * "Warning: Division by zero in /path/file.php on line 12".
+ *
+ * @author Tobias Sarnowski
+ */
+public final class PhpDiagnostic {
+
+    /**
+     * This list describes all keywords which will be printed out by PHP
+     * if an error occurs.
+     */
+    private static final String[] ERROR_IDENTIFIERS = new String[]{
+        "Fatal error",
+        "Error",
+        "Parse error"
+    };
+
+    /**
+     * This list describes all keywords which will be printed out by PHP
+     * if a warrning occurs.
+     */
+    private static final String[] WARNING_IDENTIFIERS = new String[]{
+        "Warning",
+        "Notice"
+    };
+
+    private static final String BOLD_OPEN = "<b>";
+    private static final String BOLD_CLOSE = "</b>";
+    private static final String REQUIRE_ONCE = "require_once";
+    private static final String INCLUDE_ONCE = "include_once";
+
+    private static final Pattern LOCATION = Pattern.compile("^(.*) in (.+?) on line (\\d+)\\s*$");
+    private static final Pattern TAGS = Pattern.compile("<[^>]+>");
+
+    /**
+     * How bad a diagnostic is.
+     */
+    public enum Severity {
+        ERROR,
+        WARNING
+    }
+
+    /**
+     * Classification of an output line.
+     */
+    public enum Kind {
+        NONE,
+        ERROR,
+        WARNING,
+        INCLUDE_ERROR,
+        INCLUDE_WARNING;
+
+        /**
+         * If the line is an error message.
+         *
+         * @return if an error was reported
+         */
+        public boolean isError() {
+            return this == ERROR || this == INCLUDE_ERROR;
+        }
+
+        /**
+         * If the line is a warning message.
+         *
+         * @return if a warning was reported
+         */
+        public boolean isWarning() {
+            return this == WARNING || this == INCLUDE_WARNING;
+        }
+
+        /**
+         * If the message is about a failed require_once or include_once.
+         *
+         * @return if an include failed
+         */
+        public boolean isInclude() {
+            return this == INCLUDE_ERROR || this == INCLUDE_WARNING;
+        }
+    }
+
+    private final Severity severity;
+    private final String message;
+    private final String file;
+    private final int line;
+
+    /**
+     * Creates a new diagnostic.
+     *
+     * @param severity error or warning
+     * @param message the message without identifier and location
+     * @param file the file the message refers to or null
+     * @param line the line the message refers to or 0
+     */
+    public PhpDiagnostic(Severity severity, String message, String file, int line) {
+        this.severity = severity;
+        this.message = message;
+        this.file = file;
+        this.line = line;
+    }
+
+    /**
+     * Classifies an output line of PHP in a single pass without creating any objects.
+     *
+     * @param text the output line
+     * @return the classification, {@link Kind#NONE} if it is no error or warning
+     */
+    public static Kind classify(String text) {
+        final int length = text.length();
+        int start = 0;
+        while (start < length && text.charAt(start) <= ' ') {
+            start++;
+        }
+
+        boolean bold = false;
+        if (text.startsWith(BOLD_OPEN, start)) {
+            bold = true;
+            start += BOLD_OPEN.length();
+        }
+        if (start >= length) {
+            return Kind.NONE;
+        }
+
+        final boolean error;
+        switch (text.charAt(start)) {
+            case 'F':
+            case 'E':
+            case 'P':
+                error = true;
+                if (!matchesIdentifier(text, start, bold, ERROR_IDENTIFIERS)) {
+                    return Kind.NONE;
+                }
+                break;
+            case 'W':
+            case 'N':
+                error = false;
+                if (!matchesIdentifier(text, start, bold, WARNING_IDENTIFIERS)) {
+                    return Kind.NONE;
+                }
+                break;
+            default:
+                return Kind.NONE;
+        }
+
+        final boolean include = text.indexOf(REQUIRE_ONCE, start) >= 0 || text.indexOf(INCLUDE_ONCE, start) >= 0;
+        if (error) {
+            return include ? Kind.INCLUDE_ERROR : Kind.ERROR;
+        } else {
+            return include ? Kind.INCLUDE_WARNING : Kind.WARNING;
+        }
+    }
+
+    /**
+     * Parses an output line of PHP.
+     *
+     * @param text the output line
+     * @return the diagnostic or null if the line is no error or warning
+     */
+    public static PhpDiagnostic parse(String text) {
+        final Kind kind = classify(text);
+        if (kind == Kind.NONE) {
+            return null;
+        }
+
+        final String plain = TAGS.matcher(text).replaceAll("").trim();
+        String message = plain.substring(plain.indexOf(':') + 1).trim();
+        String file = null;
+        int line = 0;
+
+        final Matcher location = LOCATION.matcher(message);
+        if (location.matches()) {
+            message = location.group(1);
+            file = location.group(2);
+            try {
+                line = Integer.parseInt(location.group(3));
+            } catch (NumberFormatException e) {
+                // more digits than any file has lines, the location is still of use
+                line = 0;
+            }
+        }
+
+        return new PhpDiagnostic(kind.isError() ? Severity.ERROR : Severity.WARNING, message, file, line);
+    }
+
+    private static boolean matchesIdentifier(String text, int start, boolean bold, String[] identifiers) {
+        for (String identifier : identifiers) {
+            if (!text.startsWith(identifier, start)) {
+                continue;
+            }
+            int end = start + identifier.length();
+            if (bold) {
+                if (!text.startsWith(BOLD_CLOSE, end)) {
+                    continue;
+                }
+                end += BOLD_CLOSE.length();
+            }
+            if (end < text.length() && text.charAt(end) == ':') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public Severity getSeverity() {
+        return severity;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public String getFile() {
+        return file;
+    }
+
+    public int getLine() {
+        return line;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder text = new StringBuilder();
+        text.append(severity == Severity.ERROR ? "Error: " : "Warning: ");
+        text.append(message);
+        if (file != null) {
+            text.append(" in ").append(file).append(" on line ").append(line);
+        }
+        return text.toString();
+    }
+}
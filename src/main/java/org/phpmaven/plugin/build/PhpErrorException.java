@@ -15,6 +15,7 @@
 package org.phpmaven.plugin.build;
 
 import java.io.File;
+import java.util.List;
 
 /**
  * Symbolizes an error, printed out by a PHP execution.
@@ -32,4 +33,15 @@ public class PhpErrorException extends PhpExecutionException {
     public PhpErrorException(File phpFile, String phpErrorMessage) {
         super(phpFile, phpErrorMessage);
     }
+
+    /**
+     * Creates an exception for the occured error.
+     *
+     * @param phpFile the PHP file which was involved in the exception
+     * @param phpErrorMessage the error message
+     * @param diagnostics the errors and warnings PHP printed
+     */
+    public PhpErrorException(File phpFile, String phpErrorMessage, List<PhpDiagnostic> diagnostics) {
+        super(phpFile, phpErrorMessage, diagnostics);
+    }
 }
@@ -24,7 +24,7 @@ public abstract class PhpException extends Exception {
     // checkstyle wants exceptions to be immutable but we
     // can not implement that at the moment
     /*CHECKSTYLE:OFF*/
-    private String phpOutput;
+    private CapturedOutput phpOutput;
     /*CHECKSTYLE:ON*/
 
     protected PhpException() {
@@ -49,15 +49,34 @@ public abstract class PhpException extends Exception {
      * @param output the output string
      */
     public void appendOutput(String output) {
+        this.phpOutput = output == null ? null : CapturedOutput.of(output);
+    }
+
+    /**
+     * Adds a captured php output to the exception. Large outputs are only referenced,
+     * not kept in memory.
+     *
+     * @param output the captured output
+     */
+    public void appendOutput(CapturedOutput output) {
         this.phpOutput = output;
     }
 
     /**
      * Returns the given output.
      *
-     * @return the output string
+     * @return the output string, truncated if the output was too large
      */
     public String getAppendedOutput() {
+        return phpOutput == null ? null : phpOutput.toString();
+    }
+
+    /**
+     * Returns the given output.
+     *
+     * @return the captured output or null
+     */
+    public CapturedOutput getCapturedOutput() {
         return phpOutput;
     }
 
@@ -14,7 +14,11 @@
 
 package org.phpmaven.plugin.build;
 
+import com.google.common.collect.Lists;
+
 import java.io.File;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * An exception occured during the PHP execution.
@@ -26,10 +30,34 @@ public class PhpExecutionException extends PhpException {
 
     private final String phpErrorMessage;
     private final File phpFile;
+    private final List<PhpDiagnostic> diagnostics;
 
     public PhpExecutionException(File phpFile, String phpErrorMessage) {
+        this(phpFile, phpErrorMessage, Collections.<PhpDiagnostic>emptyList());
+    }
+
+    public PhpExecutionException(File phpFile, String phpErrorMessage, List<PhpDiagnostic> diagnostics) {
         this.phpFile = phpFile;
         this.phpErrorMessage = "\n" + phpErrorMessage;
+        this.diagnostics = Collections.unmodifiableList(Lists.newArrayList(diagnostics));
+    }
+
+    /**
+     * The file which was executed.
+     *
+     * @return the PHP file or null
+     */
+    public File getPhpFile() {
+        return phpFile;
+    }
+
+    /**
+     * The errors and warnings PHP printed during the execution.
+     *
+     * @return the parsed diagnostics
+     */
+    public List<PhpDiagnostic> getDiagnostics() {
+        return diagnostics;
     }
 
     @Override
@@ -0,0 +1,127 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.phpmaven.plugin.build;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import org.codehaus.plexus.util.cli.StreamConsumer;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Starts PHP processes directly with an argument vector, without a shell in between
+ * and without parsing a command line string for every process. The arguments shared
+ * by all executions of a goal are kept, only the per-file arguments are appended.
+ *
+ * @author Tobias Sarnowski
+ */
+final class PhpLauncher {
+
+    /**
+     * Threads which hand the output of all PHP processes to their consumers.
+     */
+    private static final ExecutorService PUMPS = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            final Thread thread = new Thread(runnable, "php-stream-pump");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final List<String> command;
+
+    /**
+     * Creates a launcher.
+     *
+     * @param command the executable followed by the arguments used for every execution
+     */
+    PhpLauncher(List<String> command) {
+        Preconditions.checkArgument(!command.isEmpty(), "Command");
+        this.command = ImmutableList.copyOf(command);
+    }
+
+    /**
+     * Creates a launcher with additional arguments for every execution.
+     *
+     * @param arguments the arguments to append
+     * @return the new launcher
+     */
+    PhpLauncher with(String... arguments) {
+        return new PhpLauncher(command(arguments));
+    }
+
+    /**
+     * The complete argument vector for an execution.
+     *
+     * @param arguments the arguments of this execution
+     * @return the executable and all arguments
+     */
+    List<String> command(String... arguments) {
+        return ImmutableList.<String>builder().addAll(command).addAll(Arrays.asList(arguments)).build();
+    }
+
+    /**
+     * Starts a process.
+     *
+     * @param command the executable and all arguments, see {@link #command(String...)}
+     * @return the started process
+     * @throws IOException if the process can not be started
+     */
+    static Process start(List<String> command) throws IOException {
+        return new ProcessBuilder(command).start();
+    }
+
+    /**
+     * Hands every line of the stream to the consumer until the stream ends.
+     *
+     * @param stream the output of a process
+     * @param consumer handler for the lines
+     * @return finishes when the stream ended
+     */
+    static Future<?> pump(final InputStream stream, final StreamConsumer consumer) {
+        return PUMPS.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                final BufferedReader reader = new BufferedReader(new InputStreamReader(stream));
+                try {
+                    String line = reader.readLine();
+                    while (line != null) {
+                        consumer.consumeLine(line);
+                        line = reader.readLine();
+                    }
+                } finally {
+                    reader.close();
+                }
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public String toString() {
+        return command.toString();
+    }
+}
@@ -14,10 +14,25 @@
 
 package org.phpmaven.plugin.build;
 
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import org.apache.maven.plugin.MojoExecutionException;
+import org.codehaus.plexus.util.FileUtils;
+import org.codehaus.plexus.util.cli.StreamConsumer;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 
 /**
@@ -32,6 +47,21 @@ import java.io.IOException;
  */
 public final class PhpProcess extends AbstractPhpMojo {
 
+    /**
+     * Validation mode which executes every file.
+     */
+    public static final String MODE_EXECUTE = "execute";
+
+    /**
+     * Validation mode which only checks the syntax of every file.
+     */
+    public static final String MODE_LINT = "lint";
+
+    /**
+     * Introduces the syntax errors of a file in the output of the lint script.
+     */
+    private static final String LINT_MARKER = "#PHPMAVEN-LINT ";
+
     /**
      * A list of files which will not be validated but they will also be part of the result.
      *
@@ -47,6 +77,52 @@ public final class PhpProcess extends AbstractPhpMojo {
      */
     private boolean ignoreValidate;
 
+    /**
+     * How the sources will be validated. "execute" runs every file with PHP, "lint" checks
+     * many files per PHP process without executing them and needs PHP 7 or newer. With the
+     * opcache extension, lint finds the same errors as "php -l"; without it, lint only parses
+     * the files and misses compile errors like a function declared twice in a file.
+     *
+     * @parameter
+     */
+    private String validationMode = MODE_EXECUTE;
+
+    /**
+     * How many files will be checked by a single PHP process in lint mode.
+     *
+     * @parameter
+     */
+    private int lintBatchSize = 200;
+
+    /**
+     * If true, files which were validated without errors before will be skipped as long as
+     * their content, the content of the files they include, their include path and the
+     * validation configuration (PHP version, parameters, dependencies) did not change.
+     *
+     * @parameter
+     */
+    private boolean useValidationCache;
+
+    /**
+     * Files collected for the syntax check (lint mode only).
+     */
+    private final List<File> lintFiles = Collections.synchronizedList(Lists.<File>newArrayList());
+
+    /**
+     * Fingerprints of the files collected for the syntax check (validation cache only).
+     */
+    private final Map<File, byte[]> lintFingerprints = new ConcurrentHashMap<File, byte[]>();
+
+    /**
+     * Results of previous validations (only set if the cache is used).
+     */
+    private ValidationCache validationCache;
+
+    /**
+     * Includes of the sources (only set if the cache is used).
+     */
+    private IncludeGraph includeGraph;
+
     /**
      * Returns if the PHP validation should be skipped.
      *
@@ -56,6 +132,15 @@ public final class PhpProcess extends AbstractPhpMojo {
         return ignoreValidate;
     }
 
+    /**
+     * Returns if the files will only be checked for syntax errors.
+     *
+     * @return if lint mode is active
+     */
+    private boolean isLintMode() {
+        return MODE_LINT.equalsIgnoreCase(validationMode);
+    }
+
     /**
      * Checks a file if it should be excluded from processing.
      *
@@ -86,20 +171,136 @@ public final class PhpProcess extends AbstractPhpMojo {
         if (!isIncludeInJar()) {
             getLog().info("Not including php sources in resulting output.");
         }
+        checkValidationMode();
 
         getProject().addCompileSourceRoot(getSourceDirectory().getAbsolutePath());
         try {
             if (!isIgnoreValidate()) {
                 prepareCompileDependencies();
             }
-            goRecursiveAndCall(getSourceDirectory());
+            if (useValidationCache && !isIgnoreValidate()) {
+                includeGraph = updateIncludeGraph("include-graph-process.bin",
+                    Arrays.asList(getSourceDirectory(), getDependenciesTargetDirectory()),
+                    new String[] {
+                        IncludeGraph.CURRENT_DIRECTORY,
+                        getDependenciesTargetDirectory().getAbsolutePath(),
+                        getSourceDirectory().getAbsolutePath(),
+                    });
+                validationCache = new ValidationCache(
+                    new File(getWorkDirectory(), "validation.cache"),
+                    validationConfiguration());
+            }
+            final List<Exception> failures = Lists.newArrayList();
+            try {
+                goRecursiveAndCall(getSourceDirectory());
+            } catch (MultiException e) {
+                failures.addAll(e.getExceptions());
+            }
+            if (isLintMode() && !lintFiles.isEmpty()) {
+                failures.addAll(lint());
+            }
+            saveValidationCache();
+            if (isIncludeInJar()) {
+                copyScheduledFiles(getSourceDirectory(), getTargetClassesDirectory());
+            }
+            if (!failures.isEmpty()) {
+                throw new MultiException(failures);
+            }
         } catch (MultiException e) {
             throw new MojoExecutionException(e.getMessage(), e);
         } catch (PhpException e) {
             throw new MojoExecutionException(e.getMessage(), e);
         } catch (IOException e) {
             throw new MojoExecutionException(e.getMessage(), e);
+        } finally {
+            shutdownWorkerPool();
+        }
+    }
+
+    /**
+     * Checks if the validation mode is known and supported by the PHP version.
+     *
+     * @throws MojoExecutionException if the sources can not be validated this way
+     */
+    void checkValidationMode() throws MojoExecutionException {
+        if (!MODE_EXECUTE.equalsIgnoreCase(validationMode) && !isLintMode()) {
+            throw new MojoExecutionException("Unknown validationMode: " + validationMode);
+        }
+        final PhpVersion version;
+        try {
+            version = getPhpVersion();
+        } catch (PhpException e) {
+            throw new MojoExecutionException("PHP not usable", e);
+        }
+        if (isLintMode() && !isIgnoreValidate() && version != PhpVersion.UNKNOWN) {
+            // older versions can not check a file without executing it in the same process
+            throw new MojoExecutionException("validationMode " + MODE_LINT + " needs PHP 7 or newer, found "
+                + version + "; use validationMode " + MODE_EXECUTE);
+        }
+    }
+
+    /**
+     * Validates the given files again, used by php:watch.
+     *
+     * @param files the source files
+     * @return the errors found
+     */
+    List<Exception> validate(Collection<File> files) {
+        final List<Exception> failures = Lists.newArrayList();
+        for (File file : files) {
+            try {
+                handlePhpFile(file);
+            } catch (MojoExecutionException e) {
+                failures.add(e);
+            }
+        }
+        if (isLintMode() && !lintFiles.isEmpty()) {
+            try {
+                failures.addAll(lint());
+            } catch (PhpException e) {
+                failures.add(e);
+            } finally {
+                lintFiles.clear();
+                lintFingerprints.clear();
+            }
         }
+        return failures;
+    }
+
+    /**
+     * Changes the files which are not validated.
+     *
+     * @param excludeFromValidation the paths the excluded files end with
+     */
+    void setExcludeFromValidation(String[] excludeFromValidation) {
+        this.excludeFromValidation = excludeFromValidation;
+    }
+
+    /**
+     * Disables the validation.
+     *
+     * @param ignoreValidate if the sources are not validated
+     */
+    void setIgnoreValidate(boolean ignoreValidate) {
+        this.ignoreValidate = ignoreValidate;
+    }
+
+    /**
+     * Changes how the sources are validated.
+     *
+     * @param validationMode "execute" or "lint"
+     */
+    void setValidationMode(String validationMode) {
+        this.validationMode = validationMode;
+    }
+
+    /**
+     * Changes how many files are checked by a single PHP process in lint mode.
+     *
+     * @param lintBatchSize the number of files
+     */
+    void setLintBatchSize(int lintBatchSize) {
+        this.lintBatchSize = lintBatchSize;
     }
 
     @Override
@@ -108,35 +309,309 @@ public final class PhpProcess extends AbstractPhpMojo {
             return;
         }
 
-        final String includePath = includePathParameter(new String[] {
+        final String[] includePaths = new String[] {
                 file.getParentFile().getAbsolutePath(),
                 getDependenciesTargetDirectory().getAbsolutePath(),
                 getSourceDirectory().getAbsolutePath(),
-        });
-        final String command = includePath + " \"" + file.getAbsolutePath() + "\"";
+        };
+
+        final byte[] fingerprint = validationCache == null
+            ? null
+            : fingerprint(file, isLintMode() ? MODE_LINT : executionContext(file, includePaths));
+        if (fingerprint != null && validationCache.isClean(file, fingerprint)) {
+            getLog().debug("Unchanged since last validation: " + file.getAbsolutePath());
+            return;
+        }
+
+        if (isLintMode()) {
+            // checked in batches after the walk
+            if (fingerprint != null) {
+                lintFingerprints.put(file, fingerprint);
+            }
+            lintFiles.add(file);
+            return;
+        }
 
         try {
             getLog().debug("Validating: " + file.getAbsolutePath());
-            execute(command, file);
+            executeFile(file, includePaths);
         } catch (PhpException e) {
             throw new MojoExecutionException(e.getMessage(), e);
         }
+        if (fingerprint != null) {
+            validationCache.markClean(file, fingerprint);
+        }
     }
 
-    @Override
-    protected void handleProcessedFile(File file) throws MojoExecutionException {
-        if (!isIncludeInJar()) {
+    /**
+     * Calculates the validation cache fingerprint of a file.
+     *
+     * @param file the file to validate
+     * @param context what else influences the validation of the file
+     * @return the fingerprint or null if the cache is not used
+     * @throws MojoExecutionException if the file can not be read
+     */
+    private byte[] fingerprint(File file, String context) throws MojoExecutionException {
+        if (validationCache == null) {
+            return null;
+        }
+        try {
+            return validationCache.fingerprint(file, context);
+        } catch (IOException e) {
+            throw new MojoExecutionException("Failed to read " + file.getAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * Describes what besides the file itself influences its execution: the include path and
+     * the content of all files it includes.
+     *
+     * @param file the file to execute
+     * @param includePaths the include path of the file
+     * @return the context as string
+     */
+    private String executionContext(File file, String[] includePaths) {
+        final StringBuilder context = new StringBuilder(includePath(includePaths));
+        for (String included : includeGraph.getTransitiveIncludes(file.getAbsolutePath())) {
+            context.append('\n').append(included).append(':').append(Arrays.toString(includeGraph.getHash(included)));
+        }
+        return context.toString();
+    }
+
+    /**
+     * Describes everything besides the file itself which influences the validation result.
+     *
+     * @return the configuration as string
+     * @throws PhpException if the PHP version can not be resolved
+     */
+    private String validationConfiguration() throws PhpException {
+        final StringBuilder configuration = new StringBuilder();
+        configuration.append(getPhpExecutable()).append('\n');
+        configuration.append(getAdditionalPhpParameters()).append('\n');
+        configuration.append(getPhpRuntime().getVersion()).append('\n');
+        configuration.append(validationMode.toLowerCase()).append('\n');
+        configuration.append(isIgnoreIncludeErrors()).append('\n');
+        for (String element : getCompileClasspathElements()) {
+            final File dependency = new File(element);
+            configuration.append(element).append(':').append(dependency.length())
+                .append(':').append(dependency.lastModified()).append('\n');
+        }
+        return configuration.toString();
+    }
+
+    /**
+     * Stores the validation cache and reports its usage.
+     *
+     * @throws IOException if the cache can not be written
+     */
+    private void saveValidationCache() throws IOException {
+        if (validationCache == null) {
             return;
         }
+        validationCache.save();
+        getLog().info("Validation cache: " + validationCache.getHits() + " unchanged files skipped, "
+            + validationCache.getMisses() + " files validated");
+    }
+
+    /**
+     * Checks the syntax of all collected files in batches.
+     *
+     * @return the syntax errors found, one exception per file
+     * @throws PhpException if the lint script can not be executed
+     */
+    private List<Exception> lint() throws PhpException {
+        final List<File> files = Lists.newArrayList(lintFiles);
+        Collections.sort(files);
 
+        final File script = new File(getWorkDirectory(), "PhpLint.php");
         try {
-            FileHelper.copyToFolder(
-                    getSourceDirectory(),
-                    getTargetClassesDirectory(),
-                    file,
-                    isForceOverwrite());
+            FileUtils.copyURLToFile(getClass().getResource("PhpLint.php"), script);
         } catch (IOException e) {
-            throw new MojoExecutionException("Failed to copy source file to target directory", e);
+            throw new PhpCoreException("Failed to install PHP lint script", e);
+        }
+
+        final List<String> command;
+        if (getPhpRuntime().hasExtension("opcache")) {
+            command = getLauncher().command("-d", "opcache.enable_cli=1", script.getAbsolutePath());
+        } else {
+            getLog().warn("The opcache extension is not loaded, lint only finds syntax errors but no compile errors");
+            command = getLauncher().command(script.getAbsolutePath());
+        }
+        final int batchSize = Math.max(1, lintBatchSize);
+        getLog().info("Checking syntax of " + files.size() + " files in batches of " + batchSize);
+
+        final List<Future<List<Exception>>> results = Lists.newArrayList();
+        final ExecutorService executor = Executors.newFixedThreadPool(getThreadCount());
+        try {
+            for (int start = 0; start < files.size(); start += batchSize) {
+                final List<File> batch = files.subList(start, Math.min(files.size(), start + batchSize));
+                results.add(executor.submit(new Callable<List<Exception>>() {
+                    @Override
+                    public List<Exception> call() throws IOException, PhpException {
+                        return lintBatch(command, batch);
+                    }
+                }));
+            }
+
+            final List<Exception> failures = Lists.newArrayList();
+            for (Future<List<Exception>> result : results) {
+                failures.addAll(result.get());
+            }
+            return failures;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PhpCoreException("Interrupted while checking the syntax", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof PhpException) {
+                throw (PhpException) e.getCause();
+            }
+            throw new PhpCoreException("Failed to check the syntax", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Checks the syntax of a batch of files with one PHP process. If a fatal error ends the
+     * process, the files after the failed one are checked by another process.
+     *
+     * @param command the command line of the lint script, without the list file
+     * @param batch the files to check
+     * @return the syntax errors found, one exception per file
+     * @throws IOException if the file list can not be written
+     * @throws PhpException if the lint script can not be executed
+     */
+    private List<Exception> lintBatch(List<String> command, List<File> batch) throws IOException, PhpException {
+        final List<Exception> failures = Lists.newArrayList();
+
+        final Map<String, File> filesByPath = Maps.newHashMap();
+        final StringBuilder list = new StringBuilder();
+        for (File file : batch) {
+            filesByPath.put(file.getAbsolutePath(), file);
+            list.append(file.getAbsolutePath());
+            list.append("\n");
+        }
+
+        final File listFile = File.createTempFile("lint", ".txt", getWorkDirectory());
+        try {
+            FileUtils.fileWrite(listFile.getAbsolutePath(), list.toString());
+
+            final Map<File, StringBuilder> errors = Maps.newLinkedHashMap();
+            final LintOutputConsumer output = new LintOutputConsumer(filesByPath, errors);
+            final StringBuilder stderr = new StringBuilder();
+            final List<String> batchCommand = Lists.newArrayList(command);
+            batchCommand.add(listFile.getAbsolutePath());
+            final int returnCode;
+            try {
+                returnCode = execute(
+                    batchCommand,
+                    (File) null,
+                    output,
+                    new StreamConsumer() {
+                        @Override
+                        public void consumeLine(String line) {
+                            stderr.append(line);
+                            stderr.append("\n");
+                        }
+                    });
+            } catch (PhpTimeoutException e) {
+                // the other batches can still be checked
+                failures.add(e);
+                return failures;
+            }
+
+            List<File> unchecked = Collections.emptyList();
+            final File last = output.getCurrent();
+            if (returnCode != 0 && last != null) {
+                // ended by a fatal error of the last file
+                if (!errors.containsKey(last)) {
+                    errors.put(last, new StringBuilder("Fatal error: PHP terminated while checking "
+                        + last.getAbsolutePath() + " [Return: " + returnCode + "]\n" + stderr));
+                }
+                unchecked = batch.subList(batch.indexOf(last) + 1, batch.size());
+            }
+
+            for (Map.Entry<File, StringBuilder> error : errors.entrySet()) {
+                final String message = error.getValue().toString();
+                final List<PhpDiagnostic> diagnostics = Lists.newArrayList();
+                for (String line : message.split("\n")) {
+                    final PhpDiagnostic diagnostic = PhpDiagnostic.parse(line);
+                    if (diagnostic != null) {
+                        diagnostics.add(diagnostic);
+                    }
+                }
+                failures.add(new PhpErrorException(error.getKey(), message, diagnostics));
+            }
+            if ((returnCode != 0 && last == null) || (returnCode == 0 && stderr.length() > 0)) {
+                failures.add(new PhpCoreException("Failed to check syntax of " + batch.size()
+                    + " files [Return: " + returnCode + "]:\n" + stderr));
+                return failures;
+            }
+            if (validationCache != null) {
+                for (File file : batch.subList(0, batch.size() - unchecked.size())) {
+                    if (!errors.containsKey(file) && lintFingerprints.containsKey(file)) {
+                        validationCache.markClean(file, lintFingerprints.get(file));
+                    }
+                }
+            }
+            if (!unchecked.isEmpty()) {
+                failures.addAll(lintBatch(command, unchecked));
+            }
+            return failures;
+        } finally {
+            listFile.delete();
+        }
+    }
+
+    @Override
+    protected void handleProcessedFile(File file) throws MojoExecutionException {
+        if (isIncludeInJar()) {
+            // copied in one pass after the walk
+            scheduleCopy(file);
+        }
+    }
+
+    /**
+     * Maps the output of the lint script back to the checked files.
+     */
+    private final class LintOutputConsumer implements StreamConsumer {
+        private final Map<String, File> filesByPath;
+        private final Map<File, StringBuilder> errors;
+        private File current;
+
+        private LintOutputConsumer(Map<String, File> filesByPath, Map<File, StringBuilder> errors) {
+            this.filesByPath = filesByPath;
+            this.errors = errors;
+        }
+
+        /**
+         * The file which was checked last.
+         *
+         * @return the file or null if no file was started
+         */
+        private File getCurrent() {
+            return current;
+        }
+
+        @Override
+        public void consumeLine(String line) {
+            if (line.startsWith(LINT_MARKER)) {
+                current = filesByPath.get(line.substring(LINT_MARKER.length()));
+                return;
+            }
+            if (current == null || line.trim().length() == 0) {
+                getLog().debug("php.out: " + line);
+                return;
+            }
+
+            getLog().debug("Syntax error in " + current.getAbsolutePath() + ": " + line);
+            StringBuilder error = errors.get(current);
+            if (error == null) {
+                error = new StringBuilder();
+                errors.put(current, error);
+            }
+            error.append(line);
+            error.append("\n");
         }
     }
 }
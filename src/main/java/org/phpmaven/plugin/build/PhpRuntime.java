@@ -0,0 +1,367 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.phpmaven.plugin.build;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+/**
+ * What the used PHP installation offers: version, loaded extensions, ini file and
+ * default include path. Found out once with {@link #PROBE_SCRIPT} and cached for
+ * the whole reactor and, as long as neither the executable nor its ini files change,
+ * for later builds.
+ *
+ * @author Tobias Sarnowski
+ */
+public final class PhpRuntime {
+
+    /**
+     * Prints everything the runtime consists of, one "key=value" per line.
+     */
+    static final String PROBE_SCRIPT =
+        "$modern = version_compare(PHP_VERSION, '5.2.4', '>=');"
+            + "$extensions = get_loaded_extensions();"
+            + "if ($modern) { $extensions = array_merge($extensions, get_loaded_extensions(true)); }"
+            + "echo 'version=' . PHP_VERSION . \"\\n\";"
+            + "echo 'ini=' . ($modern ? php_ini_loaded_file() : '') . \"\\n\";"
+            + "echo 'include_path=' . get_include_path() . \"\\n\";"
+            + "echo 'extensions=' . strtolower(implode(',', $extensions)) . \"\\n\";"
+            + "$scanned = function_exists('php_ini_scanned_files') ? php_ini_scanned_files() : '';"
+            + "echo 'scanned=' . str_replace(array(\"\\r\", \"\\n\"), '', (string) $scanned) . \"\\n\";"
+            + "echo 'config_dirs=' . (defined('PHP_CONFIG_FILE_PATH') ? PHP_CONFIG_FILE_PATH : '')"
+            + " . PATH_SEPARATOR . (defined('PHP_CONFIG_FILE_SCAN_DIR') ? PHP_CONFIG_FILE_SCAN_DIR : '')"
+            + " . PATH_SEPARATOR . getenv('PHP_INI_SCAN_DIR') . \"\\n\";";
+
+    private static final String KEY_VERSION = "version";
+    private static final String KEY_INI = "ini";
+    private static final String KEY_INCLUDE_PATH = "include_path";
+    private static final String KEY_EXTENSIONS = "extensions";
+    private static final String KEY_SCANNED = "scanned";
+    private static final String KEY_CONFIG_DIRECTORIES = "config_dirs";
+    private static final String KEY_CONFIG_STAMP = "config_stamp";
+    private static final String ZEND_PREFIX = "zend ";
+
+    /**
+     * Runtimes already found out in this JVM, by {@link #key(List, File)}.
+     */
+    private static final ConcurrentMap<String, PhpRuntime> SESSION = new ConcurrentHashMap<String, PhpRuntime>();
+
+    private final String version;
+    private final String iniFile;
+    private final String includePath;
+    private final Set<String> extensions;
+    private final String scannedFiles;
+    private final String configDirectories;
+
+    /**
+     * Creates a runtime description.
+     *
+     * @param version the full version like "5.3.2"
+     * @param iniFile the loaded php.ini or null
+     * @param includePath the default include path
+     * @param extensions names of the loaded extensions
+     * @param scannedFiles the additional ini files, separated by ",", or null
+     * @param configDirectories the directories PHP searches for ini files, separated by
+     *      {@link File#pathSeparator}, or null
+     */
+    PhpRuntime(String version, String iniFile, String includePath, Set<String> extensions,
+        String scannedFiles, String configDirectories) {
+
+        Preconditions.checkNotNull(version, "Version");
+        this.version = version;
+        this.iniFile = iniFile;
+        this.includePath = includePath == null ? "" : includePath;
+        this.extensions = ImmutableSortedSet.copyOf(extensions);
+        this.scannedFiles = scannedFiles == null ? "" : scannedFiles;
+        this.configDirectories = configDirectories == null ? "" : configDirectories;
+    }
+
+    /**
+     * Parses the output of the {@link #PROBE_SCRIPT}.
+     *
+     * @param lines the output lines
+     * @return the runtime
+     * @throws PhpCoreException if the output is incomplete
+     */
+    static PhpRuntime parse(List<String> lines) throws PhpCoreException {
+        final Properties values = new Properties();
+        for (String line : lines) {
+            final int separator = line.indexOf('=');
+            if (separator > 0) {
+                values.setProperty(line.substring(0, separator), line.substring(separator + 1));
+            }
+        }
+        final PhpRuntime runtime = fromProperties(values);
+        if (runtime == null) {
+            throw new PhpCoreException("Cannot find out the PHP runtime: " + lines);
+        }
+        return runtime;
+    }
+
+    /**
+     * Builds the cache key of a runtime. The key changes if the arguments or the
+     * executable change.
+     *
+     * @param command the executable and arguments used for every execution
+     * @param executable the resolved executable or null if it can not be found
+     * @return the key
+     */
+    static String key(List<String> command, File executable) {
+        final StringBuilder key = new StringBuilder(Joiner.on('\0').join(command));
+        if (executable != null) {
+            key.append('\0').append(executable.getAbsolutePath());
+            key.append('\0').append(executable.length());
+            key.append('\0').append(executable.lastModified());
+        }
+        return sha1(key.toString());
+    }
+
+    private static String sha1(String text) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-1").digest(text.getBytes("UTF-8"));
+            final StringBuilder hex = new StringBuilder();
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+                hex.append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 not available", e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 not available", e);
+        }
+    }
+
+    /**
+     * Looks up a runtime already found out in this JVM.
+     *
+     * @param key the key, see {@link #key(List, File)}
+     * @return the runtime or null
+     */
+    static PhpRuntime fromSession(String key) {
+        return SESSION.get(key);
+    }
+
+    /**
+     * Remembers a runtime for all following goals in this JVM.
+     *
+     * @param key the key, see {@link #key(List, File)}
+     * @param runtime the runtime
+     */
+    static void toSession(String key, PhpRuntime runtime) {
+        SESSION.put(key, runtime);
+    }
+
+    /**
+     * Reads a runtime stored by {@link #save(File)}.
+     *
+     * @param file the stored runtime
+     * @return the runtime or null if the file does not exist, is not complete or one of the
+     *      ini files changed since
+     * @throws IOException if the file can not be read
+     */
+    static PhpRuntime load(File file) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+        final Properties values = new Properties();
+        final InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try {
+            values.load(in);
+        } finally {
+            in.close();
+        }
+        final PhpRuntime runtime = fromProperties(values);
+        if (runtime == null || !runtime.configurationStamp().equals(values.getProperty(KEY_CONFIG_STAMP))) {
+            return null;
+        }
+        return runtime;
+    }
+
+    /**
+     * Fingerprints the ini files PHP read and the directories it searched for them, a
+     * changed, added or removed ini file changes the stamp.
+     *
+     * @return the stamp
+     */
+    private String configurationStamp() {
+        final List<String> paths = Lists.newArrayList();
+        if (iniFile != null) {
+            paths.add(iniFile);
+        }
+        for (String scanned : scannedFiles.split(",")) {
+            paths.add(scanned.trim());
+        }
+        paths.addAll(Arrays.asList(configDirectories.split(Pattern.quote(File.pathSeparator))));
+
+        final StringBuilder stamp = new StringBuilder();
+        for (String path : paths) {
+            if (path.length() > 0) {
+                // 0 if the file does not exist
+                stamp.append(path).append('\0').append(new File(path).lastModified()).append('\0');
+            }
+        }
+        return sha1(stamp.toString());
+    }
+
+    /**
+     * Stores the runtime, so later builds do not have to probe it again.
+     *
+     * @param file where to store the runtime
+     * @throws IOException if the file can not be written
+     */
+    void save(File file) throws IOException {
+        final Properties values = new Properties();
+        values.setProperty(KEY_VERSION, version);
+        values.setProperty(KEY_INI, iniFile == null ? "" : iniFile);
+        values.setProperty(KEY_INCLUDE_PATH, includePath);
+        values.setProperty(KEY_EXTENSIONS, Joiner.on(',').join(extensions));
+        values.setProperty(KEY_SCANNED, scannedFiles);
+        values.setProperty(KEY_CONFIG_DIRECTORIES, configDirectories);
+        values.setProperty(KEY_CONFIG_STAMP, configurationStamp());
+
+        file.getParentFile().mkdirs();
+        final File tmp = new File(file.getPath() + ".tmp");
+        final OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp));
+        try {
+            values.store(out, "PHP runtime probe");
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+                throw new IOException("Failed to store PHP runtime probe " + file.getAbsolutePath());
+            }
+        }
+    }
+
+    private static PhpRuntime fromProperties(Properties values) {
+        final String version = values.getProperty(KEY_VERSION);
+        final String extensionList = values.getProperty(KEY_EXTENSIONS);
+        if (version == null || version.length() == 0 || extensionList == null) {
+            return null;
+        }
+        final Set<String> extensions = Sets.newHashSet();
+        for (String extension : extensionList.split(",")) {
+            final String name = extension.trim().toLowerCase();
+            if (name.length() > 0) {
+                extensions.add(name);
+            }
+            // "Zend OPcache" should be found as "opcache"
+            if (name.startsWith(ZEND_PREFIX)) {
+                extensions.add(name.substring(ZEND_PREFIX.length()));
+            }
+        }
+        final String iniFile = values.getProperty(KEY_INI);
+        return new PhpRuntime(version,
+            iniFile == null || iniFile.length() == 0 ? null : iniFile,
+            values.getProperty(KEY_INCLUDE_PATH),
+            extensions,
+            values.getProperty(KEY_SCANNED),
+            values.getProperty(KEY_CONFIG_DIRECTORIES));
+    }
+
+    /**
+     * The full version.
+     *
+     * @return the version like "5.3.2"
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    /**
+     * The major version.
+     *
+     * @return the PHP version
+     */
+    public PhpVersion getPhpVersion() {
+        if (version.startsWith("6.")) {
+            return PhpVersion.PHP6;
+        } else if (version.startsWith("5.")) {
+            return PhpVersion.PHP5;
+        } else if (version.startsWith("4.")) {
+            return PhpVersion.PHP4;
+        } else {
+            return PhpVersion.UNKNOWN;
+        }
+    }
+
+    /**
+     * The loaded php.ini.
+     *
+     * @return the path of the ini file or null if none is loaded
+     */
+    public String getIniFile() {
+        return iniFile;
+    }
+
+    /**
+     * The include path configured in the php.ini.
+     *
+     * @return the default include path
+     */
+    public String getIncludePath() {
+        return includePath;
+    }
+
+    /**
+     * Names of all loaded extensions, including zend extensions, in lower case.
+     *
+     * @return the sorted extension names
+     */
+    public Set<String> getExtensions() {
+        return extensions;
+    }
+
+    /**
+     * Checks if an extension like "opcache", "pcov" or "xdebug" is loaded.
+     *
+     * @param name name of the extension
+     * @return if the extension is loaded
+     */
+    public boolean hasExtension(String name) {
+        return extensions.contains(name.toLowerCase());
+    }
+
+    @Override
+    public String toString() {
+        return "PHP " + version + " (ini: " + iniFile + ", extensions: " + Joiner.on(", ").join(extensions) + ")";
+    }
+}
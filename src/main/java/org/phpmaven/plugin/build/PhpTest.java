@@ -15,23 +15,43 @@
 package org.phpmaven.plugin.build;
 
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
 import org.codehaus.plexus.util.FileUtils;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
-
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
+import org.codehaus.plexus.util.cli.CommandLineException;
+import org.codehaus.plexus.util.cli.CommandLineUtils;
+import org.codehaus.plexus.util.cli.Commandline;
+import org.codehaus.plexus.util.cli.StreamConsumer;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URL;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * PHPUnit executes <a href="http://www.phpunit.de/">phpunit</a> TestCases and
@@ -50,6 +70,21 @@ public final class PhpTest extends AbstractPhpMojo {
      */
     public static final String TEST_FILE = "testFile";
 
+    /**
+     * Test files are executed one after the other by a few PHP processes.
+     */
+    public static final String RUNNER_SUITE = "suite";
+
+    /**
+     * Every test file is executed by its own PHP process.
+     */
+    public static final String RUNNER_ISOLATED = "isolated";
+
+    /**
+     * Creates the readers of the result files, configured once.
+     */
+    private static final XMLInputFactory XML_INPUT_FACTORY = createXmlInputFactory();
+
     /**
      * Where the test results should be stored.
      *
@@ -80,9 +115,120 @@ public final class PhpTest extends AbstractPhpMojo {
     private String testPostfix = "Test";
 
     /**
-     * Collection of test results.
+     * How many test files will be executed in parallel, each in its own PHP process. Either a
+     * fixed number or a multiple of the available processors like "1C". Overrides the threads
+     * parameter for the test execution.
+     *
+     * Default: -unset-
+     *
+     * @parameter
+     */
+    private String forkCount;
+
+    /**
+     * How test files are executed with PHP 5: "isolated" starts a PHP process for every test
+     * file, so tests which rely on global state keep working. "suite" hands them to
+     * {@link #getThreadCount()} PHP processes which load PHPUnit and the bootstrap once and
+     * execute the test files one after the other. With "suite", each process may take the
+     * timeout times the number of its test files; test files which have no results after a
+     * process died or was killed are executed again on their own.
+     *
+     * Default: isolated
+     *
+     * @parameter
+     */
+    private String testRunner = RUNNER_ISOLATED;
+
+    /**
+     * Splits the test files into this many shards, e.g. to spread them across several CI nodes,
+     * and only executes the shard {@link #shardIndex}. The shards are balanced by the durations
+     * stored in {@link #testTimings}, unknown test files are estimated by their size.
+     *
+     * Default: 1
+     *
+     * @parameter
+     */
+    private int shardCount = 1;
+
+    /**
+     * Which shard of the test files to execute, from 0 to {@link #shardCount} - 1.
+     *
+     * Default: 0
+     *
+     * @parameter
+     */
+    private int shardIndex;
+
+    /**
+     * Where the durations of the test files are stored, relative to the base directory. Every
+     * run updates the durations of the test files it executed. Keep this file between CI runs
+     * and hand the same file to all nodes, so every node computes the same shards.
+     *
+     * Default: test-timings.txt in the work directory
+     *
+     * @parameter
+     */
+    private String testTimings;
+
+    /**
+     * If true, only test files are executed which include (directly or indirectly) a file that
+     * changed since the last successful run or since {@link #testImpactBaseRef}. Skipped test
+     * files report their previous results. If PHP, its parameters, the include path or a
+     * dependency changed since the last successful run, all test files are executed.
+     *
+     * @parameter
+     */
+    private boolean testImpactAnalysis;
+
+    /**
+     * A git revision (like "origin/master") to compare the working copy with for the test impact
+     * analysis instead of the last successful run.
+     *
+     * Default: -unset-
+     *
+     * @parameter
+     */
+    private String testImpactBaseRef;
+
+    /**
+     * Selects the test files to execute (only set if the test impact analysis is used).
+     */
+    private TestImpactAnalysis impactAnalysis;
+
+    /**
+     * Durations of the test files (only set by a php:test run).
+     */
+    private TestTimings timings;
+
+    /**
+     * The test files to execute if the test files are sharded, relative to the test sources.
+     */
+    private Set<String> shard;
+
+    /**
+     * Number of test files which were skipped by the test impact analysis.
+     */
+    private final AtomicInteger skippedTestFiles = new AtomicInteger();
+
+    /**
+     * Number of test files found.
+     */
+    private final AtomicInteger testFiles = new AtomicInteger();
+
+    /**
+     * Totals of all test results (test files may be executed in parallel).
+     */
+    private SurefireSummary summary = new SurefireSummary();
+
+    /**
+     * Names of the result files by test file, decided before the test files are executed.
+     */
+    private Map<String, String> resultFileNames = Collections.emptyMap();
+
+    /**
+     * Test files found by the walk, executed by {@link #runPendingTests()}.
      */
-    private List<SurefireResult> surefireResults = Lists.newArrayList();
+    private final Queue<PendingTest> pendingTests = new ConcurrentLinkedQueue<PendingTest>();
 
     public PhpTest() {
         super();
@@ -103,6 +249,58 @@ public final class PhpTest extends AbstractPhpMojo {
         return testPostfix;
     }
 
+    public String getForkCount() {
+        return forkCount;
+    }
+
+    public String getTestRunner() {
+        return testRunner;
+    }
+
+    public int getShardCount() {
+        return shardCount;
+    }
+
+    public int getShardIndex() {
+        return shardIndex;
+    }
+
+    /**
+     * Where the durations of the test files are stored.
+     *
+     * @return the timings file
+     */
+    public File getTestTimingsFile() {
+        if (testTimings == null) {
+            return new File(getWorkDirectory(), "test-timings.txt");
+        }
+        final File file = new File(testTimings);
+        return file.isAbsolute() ? file : new File(getBaseDir(), testTimings);
+    }
+
+    /**
+     * Test files are only left to suite processes if configured and supported by the PHP version.
+     *
+     * @return if the test files are executed by suite processes
+     * @throws PhpException if the PHP version can not be determined
+     */
+    private boolean isSuiteRunner() throws PhpException {
+        return RUNNER_SUITE.equalsIgnoreCase(testRunner) && getPhpVersion() == PhpVersion.PHP5;
+    }
+
+    /**
+     * Test files will be executed in {@link #getForkCount()} parallel processes if configured.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public int getThreadCount() {
+        if (forkCount != null) {
+            return parseThreadCount(forkCount);
+        }
+        return super.getThreadCount();
+    }
+
     /**
      * Prepares the test paths.
      *
@@ -132,6 +330,14 @@ public final class PhpTest extends AbstractPhpMojo {
         try {
             getProject().addTestCompileSourceRoot(getTestSourceDirectory().getAbsolutePath());
 
+            if (!RUNNER_SUITE.equalsIgnoreCase(testRunner) && !RUNNER_ISOLATED.equalsIgnoreCase(testRunner)) {
+                throw new MojoExecutionException("Unknown testRunner: " + testRunner);
+            }
+            if (shardCount < 1 || shardIndex < 0 || shardIndex >= shardCount) {
+                throw new MojoExecutionException("Invalid shard " + shardIndex + " of " + shardCount
+                    + ", shardIndex has to be between 0 and shardCount - 1");
+            }
+
             final File testSourceFolder = getTestSourceDirectory();
             if (!testSourceFolder.isDirectory()) {
                 getLog().info("No test cases found; skipping.");
@@ -146,35 +352,56 @@ public final class PhpTest extends AbstractPhpMojo {
             folder.mkdirs();
 
             prepareTestDependencies();
+            timings = TestTimings.load(getTestTimingsFile());
+            final Map<String, Long> testSizes = findTestFiles(testSourceFolder);
+            resultFileNames = decideResultFileNames(testSizes.keySet());
+            if (shardCount > 1) {
+                prepareShard(testSizes);
+            }
+            if (testImpactAnalysis) {
+                prepareImpactAnalysis();
+            }
             getLog().info("Surefire report directory: " + folder.getAbsolutePath());
             System.out.println("\n-------------------------------------------------------");
             System.out.println("T E S T S");
             System.out.println("-------------------------------------------------------");
 
             goRecursiveAndCall(testSourceFolder);
+            final List<Exception> suiteFailures = runPendingTests();
+            timings.save();
+            if (!suiteFailures.isEmpty()) {
+                throw new MultiException(suiteFailures);
+            }
+            if (isIncludeInJar()) {
+                copyScheduledFiles(getTestSourceDirectory(), getTargetTestClassesDirectory());
+            }
 
             System.out.println();
             System.out.println("Results :");
             System.out.println();
 
-            int completeTests = 0;
-            int completeFailures = 0;
-            int completeErrors = 0;
-
-            for (SurefireResult surefireResult : surefireResults) {
-                completeTests += surefireResult.getTests();
-                completeFailures += surefireResult.getFailure();
-                completeErrors += surefireResult.getErrors();
-            }
+            final int completeTests = summary.getTests();
+            final int completeFailures = summary.getFailures();
+            final int completeErrors = summary.getErrors();
 
             System.out.println("Tests run: " + completeTests
                 + ", Failures: " + completeFailures
                 + ", Errors: " + completeErrors + "\n");
 
+            if (impactAnalysis != null) {
+                getLog().info("Test impact analysis: " + skippedTestFiles.get() + " of " + testFiles.get()
+                    + " test files skipped, nothing they include changed since "
+                    + (testImpactBaseRef == null ? "the last successful run" : testImpactBaseRef));
+            }
+
             if (completeErrors != 0 || completeFailures != 0) {
                 throw new UnitTestCaseFailureException(completeErrors, completeFailures);
             }
 
+            if (impactAnalysis != null) {
+                impactAnalysis.saveState();
+            }
+
         } catch (MultiException e) {
             throw new MojoExecutionException(e.getMessage(), e);
         } catch (PhpException e) {
@@ -186,6 +413,83 @@ public final class PhpTest extends AbstractPhpMojo {
         }
     }
 
+    /**
+     * Executes the given test files again, used by php:watch. Prints the results like a normal run.
+     *
+     * @param files the test files, other files are ignored
+     * @return the errors of the test files which could not be executed
+     */
+    List<Exception> runTests(Collection<File> files) {
+        summary = new SurefireSummary();
+
+        final List<Exception> failures = Lists.newArrayList();
+        try {
+            // the same names as a complete run, even if test files were added since
+            resultFileNames = decideResultFileNames(findTestFiles(getTestSourceDirectory()).keySet());
+        } catch (IOException e) {
+            failures.add(e);
+            return failures;
+        }
+        for (File file : files) {
+            try {
+                handlePhpFile(file);
+            } catch (MojoExecutionException e) {
+                failures.add(e);
+            }
+        }
+        failures.addAll(runPendingTests());
+
+        System.out.println("Tests run: " + summary.getTests()
+            + ", Failures: " + summary.getFailures()
+            + ", Errors: " + summary.getErrors() + "\n");
+        return failures;
+    }
+
+    /**
+     * Changes the postfix of test files.
+     *
+     * @param testPostfix the postfix like "Test"
+     */
+    void setTestPostfix(String testPostfix) {
+        this.testPostfix = testPostfix;
+    }
+
+    /**
+     * Restricts the tests to a single test file.
+     *
+     * @param testFile the path the test file ends with or null for all
+     */
+    void setTestFile(String testFile) {
+        this.testFile = testFile;
+    }
+
+    /**
+     * Changes how many test files are executed in parallel.
+     *
+     * @param forkCount a number, a multiple of the processors like "1C" or null for the threads
+     */
+    void setForkCount(String forkCount) {
+        this.forkCount = forkCount;
+    }
+
+    /**
+     * Changes how the test files are executed.
+     *
+     * @param testRunner "isolated" or "suite"
+     */
+    void setTestRunner(String testRunner) {
+        this.testRunner = testRunner;
+    }
+
+    /**
+     * Changes where the durations of the test files are stored.
+     *
+     * @param testTimings the file relative to the base directory or null for the default
+     */
+    void setTestTimings(String testTimings) {
+        this.testTimings = testTimings;
+    }
+
     /**
      * Tests a single PHP file.
      *
@@ -199,45 +503,537 @@ public final class PhpTest extends AbstractPhpMojo {
         if (!isTestFile(file)) {
             return;
         }
+        if (shard != null && !shard.contains(relativeTestName(file))) {
+            return;
+        }
+        testFiles.incrementAndGet();
 
-        // replace file ending with .xml
-        String name = file.getName();
-        name = name.substring(0, name.length() - ending.length()) + ".xml";
+        String name = resultFileNames.get(relativeTestName(file));
+        if (name == null) {
+            // replace file ending with .xml
+            name = file.getName();
+            name = name.substring(0, name.length() - ending.length()) + ".xml";
+        }
         final File targetFile = new File(getResultFolder(), name);
 
         // create report directory
         targetFile.getParentFile().mkdirs();
 
+        runTestFile(file, targetFile, true);
+    }
+
+    /**
+     * Executes a test file in its own PHP process and reports its results.
+     *
+     * @param file the test file
+     * @param targetFile where the results are written to
+     * @param schedule if the file should be left to {@link #runPendingTests()} instead
+     * @throws MojoExecutionException if the test file could not be executed
+     */
+    private void runTestFile(File file, File targetFile, boolean schedule) throws MojoExecutionException {
+        // buffered, so the output of parallel tests does not interleave
+        final StringBuilder console = new StringBuilder();
+        final String testName = relativeTestName(file);
         try {
-            final String command = createCommandLine(file, targetFile);
+            if (impactAnalysis != null && !impactAnalysis.isAffected(file)
+                && impactAnalysis.restoreResult(testName, targetFile)) {
+                getLog().debug("Not affected by changes, using previous result: " + testName);
+                skippedTestFiles.incrementAndGet();
+                parseResultingXML(targetFile, console);
+                return;
+            }
+
+            // never report the results of an earlier run
+            targetFile.delete();
+
+            if (schedule) {
+                pendingTests.add(new PendingTest(file, targetFile, testName));
+                return;
+            }
+
+            final List<String> command = createCommandLine(file, targetFile);
             String output = "-no output-";
+            PhpException failure = null;
+            final long start = System.currentTimeMillis();
             try {
                 output = execute(command, file);
+            } catch (PhpTimeoutException e) {
+                // killed, the results are incomplete at best; report why with the partial output
+                throw e;
             } catch (PhpException e) {
                 writeFailure(file, targetFile, e.getAppendedOutput());
+                failure = e;
             }
+            final long processMillis = System.currentTimeMillis() - start;
 
             if (targetFile.exists()) {
-                parseResultingXML(targetFile);
+                reportResult(testName, targetFile, console, processMillis);
+            } else if (failure != null) {
+                throw failure;
             } else {
                 throw new PhpErrorException(file, output);
             }
         } catch (PhpException e) {
             try {
+                if (impactAnalysis != null) {
+                    impactAnalysis.storeResult(testName, targetFile, false);
+                }
                 writeFailure(file, targetFile, e.getMessage());
                 throw new MojoExecutionException(e.getMessage(), e);
             } catch (IOException ioe) {
                 throw new MojoExecutionException(ioe.getMessage(), ioe);
             }
-        } catch (SAXException e) {
-            throw new MojoExecutionException(e.getMessage(), e);
-        } catch (ParserConfigurationException e) {
+        } catch (XMLStreamException e) {
             throw new MojoExecutionException(e.getMessage(), e);
         } catch (IOException e) {
             throw new MojoExecutionException(e.getMessage(), e);
+        } finally {
+            printConsole(console);
+        }
+    }
+
+    /**
+     * Reports the results of an executed test file.
+     *
+     * @param testName the name of the test file for the test impact analysis
+     * @param targetFile the results
+     * @param console where to print the results to
+     * @param processMillis how long the PHP process took, 0 if it executed other test files as well
+     * @throws XMLStreamException if the results are no valid XML
+     * @throws IOException if the results can not be read or stored
+     */
+    private void reportResult(String testName, File targetFile, StringBuilder console, long processMillis)
+        throws XMLStreamException, IOException {
+        boolean passed = true;
+        long millis = 0;
+        for (SurefireResult result : parseResultingXML(targetFile, console)) {
+            passed = passed && result.isPassed();
+            millis += result.getTimeMillis();
+        }
+        if (timings != null) {
+            // the process time includes the start of PHP and PHPUnit
+            timings.put(testName, Math.max(millis, processMillis));
+        }
+        if (impactAnalysis != null) {
+            impactAnalysis.storeResult(testName, targetFile, passed);
         }
     }
 
+    /**
+     * Executes the collected test files with {@link #getThreadCount()} PHP processes, the
+     * test files which are expected to take longest first. Prints the expected and the
+     * actual duration.
+     *
+     * @return the errors of the test files which could not be executed
+     */
+    private List<Exception> runPendingTests() {
+        final List<Exception> failures = Lists.newArrayList();
+        final Map<String, PendingTest> tests = Maps.newHashMap();
+        final Map<String, Long> sizes = Maps.newHashMap();
+        PendingTest pending = pendingTests.poll();
+        while (pending != null) {
+            tests.put(pending.getTestName(), pending);
+            sizes.put(pending.getTestName(), pending.getFile().length());
+            pending = pendingTests.poll();
+        }
+        if (tests.isEmpty()) {
+            return failures;
+        }
+        if (timings == null) {
+            timings = TestTimings.load(getTestTimingsFile());
+        }
+
+        final boolean suiteRunner;
+        try {
+            suiteRunner = isSuiteRunner();
+        } catch (PhpException e) {
+            failures.add(e);
+            return failures;
+        }
+        final Map<String, Long> expected = timings.estimate(sizes);
+        final List<String> order = TestTimings.longestFirst(expected);
+        final int processes = Math.max(1, Math.min(getThreadCount(), tests.size()));
+        final long predicted = TestTimings.criticalPath(order, expected, processes);
+        final long start = System.currentTimeMillis();
+
+        final List<Callable<List<Exception>>> tasks = Lists.newArrayList();
+        if (suiteRunner) {
+            final File script = new File(getWorkDirectory(), "MavenSuite.php");
+            try {
+                FileUtils.copyURLToFile(getClass().getResource("MavenSuite.php"), script);
+            } catch (IOException e) {
+                failures.add(new PhpCoreException("Failed to install PHP test suite script", e));
+                return failures;
+            }
+            for (List<String> testNames : TestTimings.partition(expected, processes)) {
+                final List<PendingTest> suite = Lists.newArrayList();
+                for (String testName : testNames) {
+                    suite.add(tests.get(testName));
+                }
+                tasks.add(new Callable<List<Exception>>() {
+                    @Override
+                    public List<Exception> call() {
+                        return runSuite(script, suite);
+                    }
+                });
+            }
+        } else {
+            // every process takes the next test file as soon as it is done
+            final Queue<PendingTest> queue = new ConcurrentLinkedQueue<PendingTest>();
+            for (String testName : order) {
+                queue.add(tests.get(testName));
+            }
+            for (int i = 0; i < processes; i++) {
+                tasks.add(new Callable<List<Exception>>() {
+                    @Override
+                    public List<Exception> call() {
+                        return runIsolated(queue);
+                    }
+                });
+            }
+        }
+        failures.addAll(runInParallel(tasks));
+
+        getLog().info("Executed " + tests.size() + " test files with " + processes + " PHP processes, critical path "
+            + (System.currentTimeMillis() - start) + " ms, expected " + predicted + " ms (longest test file "
+            + order.get(0) + ", expected " + expected.get(order.get(0)) + " ms)");
+        return failures;
+    }
+
+    /**
+     * Executes tasks in parallel, each in its own thread.
+     *
+     * @param tasks the tasks, they have to catch their exceptions
+     * @return the exceptions returned by the tasks, in task order
+     */
+    private List<Exception> runInParallel(List<Callable<List<Exception>>> tasks) {
+        final List<Exception> failures = Lists.newArrayList();
+        final List<Future<List<Exception>>> results = Lists.newArrayList();
+        final ExecutorService executor = Executors.newFixedThreadPool(tasks.size());
+        try {
+            for (Callable<List<Exception>> task : tasks) {
+                results.add(executor.submit(task));
+            }
+            for (Future<List<Exception>> result : results) {
+                failures.addAll(result.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failures.add(new PhpCoreException("Interrupted while executing the tests", e));
+        } catch (ExecutionException e) {
+            // the tasks catch all exceptions, so this is an error
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        return failures;
+    }
+
+    /**
+     * Executes test files in their own PHP process, one after the other.
+     *
+     * @param queue the test files, shared with other threads
+     * @return the errors of the test files which could not be executed
+     */
+    private List<Exception> runIsolated(Queue<PendingTest> queue) {
+        final List<Exception> failures = Lists.newArrayList();
+        PendingTest test = queue.poll();
+        while (test != null) {
+            try {
+                runTestFile(test.getFile(), test.getTargetFile(), false);
+            } catch (MojoExecutionException e) {
+                failures.add(e);
+            }
+            test = queue.poll();
+        }
+        return failures;
+    }
+
+    /**
+     * Executes test files with one PHP process and reports their results. Test files
+     * without results afterwards are executed on their own.
+     *
+     * @param script the suite script
+     * @param suite the test files
+     * @return the errors of the test files which could not be executed
+     */
+    private List<Exception> runSuite(File script, List<PendingTest> suite) {
+        final List<Exception> failures = Lists.newArrayList();
+
+        final StringBuilder list = new StringBuilder();
+        for (PendingTest test : suite) {
+            list.append(test.getFile().getAbsolutePath());
+            list.append('\t');
+            list.append(test.getTargetFile().getAbsolutePath());
+            list.append("\n");
+        }
+
+        File listFile = null;
+        try {
+            listFile = File.createTempFile("tests", ".txt", getWorkDirectory());
+            FileUtils.fileWrite(listFile.getAbsolutePath(), list.toString());
+            execute(createSuiteCommandLine(script, listFile), listFile, suite.size());
+        } catch (PhpException e) {
+            // died or killed, the test files without results are executed on their own
+            getLog().debug(e);
+        } catch (IOException e) {
+            getLog().debug(e);
+        } finally {
+            if (listFile != null) {
+                listFile.delete();
+            }
+        }
+
+        for (PendingTest test : suite) {
+            final String testName = test.getTestName();
+            boolean reported = false;
+            if (test.getTargetFile().exists()) {
+                final StringBuilder console = new StringBuilder();
+                try {
+                    reportResult(testName, test.getTargetFile(), console, 0);
+                    reported = true;
+                } catch (XMLStreamException e) {
+                    // written only partially
+                    getLog().debug(e);
+                    console.setLength(0);
+                } catch (IOException e) {
+                    failures.add(new MojoExecutionException(e.getMessage(), e));
+                    reported = true;
+                } finally {
+                    printConsole(console);
+                }
+            }
+            if (!reported) {
+                getLog().debug("No results of the suite process, executing on its own: " + testName);
+                try {
+                    runTestFile(test.getFile(), test.getTargetFile(), false);
+                } catch (MojoExecutionException e) {
+                    failures.add(e);
+                }
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * Finds all test files like the walk over the test sources does.
+     *
+     * @param testSourceFolder the test sources
+     * @return the sizes of the test files by their relative path, sorted by path
+     * @throws IOException if the test sources can not be walked
+     */
+    private Map<String, Long> findTestFiles(File testSourceFolder) throws IOException {
+        final Map<String, Long> sizes = Maps.newTreeMap();
+        final String ending = "." + getPhpFileEnding();
+        new SourceWalker(Arrays.asList(getIncludes()), Arrays.asList(getExcludes()), true).walk(testSourceFolder,
+            new SourceWalker.Visitor() {
+                @Override
+                public void visitFile(File file) {
+                    if (file.getName().endsWith(ending) && isTestFile(file)) {
+                        sizes.put(relativeTestName(file), file.length());
+                    }
+                }
+            });
+        return sizes;
+    }
+
+    /**
+     * Names the result files of the test files. A test file gets its file name with ".xml" as
+     * ending. Test files with the same name in different directories all get their path with "."
+     * as separator instead, so the names do not depend on which test file is executed first.
+     *
+     * @param testNames the relative paths of all test files
+     * @return the result file names by relative path
+     */
+    private Map<String, String> decideResultFileNames(Collection<String> testNames) {
+        final String ending = "." + getPhpFileEnding();
+        final Map<String, Integer> counts = Maps.newHashMap();
+        for (String testName : testNames) {
+            final String name = testName.substring(testName.lastIndexOf('/') + 1);
+            final Integer count = counts.get(name);
+            counts.put(name, count == null ? 1 : count + 1);
+        }
+
+        final Map<String, String> names = Maps.newHashMap();
+        for (String testName : testNames) {
+            String name = testName.substring(testName.lastIndexOf('/') + 1);
+            if (counts.get(name) > 1) {
+                // same file name in another directory, do not let them overwrite each other
+                name = testName.replace('/', '.');
+            }
+            names.put(testName, name.substring(0, name.length() - ending.length()) + ".xml");
+        }
+        return names;
+    }
+
+    /**
+     * Determines the test files of the shard to execute.
+     *
+     * @param sizes the sizes of all test files by their relative path
+     */
+    private void prepareShard(Map<String, Long> sizes) {
+        final List<List<String>> shards = TestTimings.partition(timings.estimate(sizes), shardCount);
+        shard = Sets.newHashSet(shards.get(shardIndex));
+        getLog().info("Test shard " + shardIndex + " of " + shardCount + ": executing " + shard.size()
+            + " of " + sizes.size() + " test files");
+    }
+
+    /**
+     * Updates the include graph of tests and sources and determines the changed files.
+     *
+     * @throws IOException if the sources can not be read
+     * @throws PhpException if git can not be asked for the changed files
+     */
+    private void prepareImpactAnalysis() throws IOException, PhpException {
+        final IncludeGraph graph = updateIncludeGraph("include-graph-test.bin",
+            Arrays.asList(
+                getSourceDirectory(),
+                getTestSourceDirectory(),
+                getDependenciesTargetDirectory(),
+                getTestDependenciesTargetDirectory()),
+            new String[] {
+                getSourceDirectory().getAbsolutePath(),
+                getTestSourceDirectory().getAbsolutePath(),
+                getDependenciesTargetDirectory().getAbsolutePath(),
+                getTestDependenciesTargetDirectory().getAbsolutePath(),
+                IncludeGraph.CURRENT_DIRECTORY,
+            });
+
+        impactAnalysis = new TestImpactAnalysis(graph,
+            new File(getWorkDirectory(), "test-impact.state"),
+            new File(getWorkDirectory(), "test-results"),
+            impactConfiguration());
+
+        if (!impactAnalysis.isConfigurationUnchanged()) {
+            getLog().info("Test impact analysis: no successful run with this configuration yet, executing all tests.");
+        } else if (testImpactBaseRef != null) {
+            impactAnalysis.useChangedFiles(changedFilesSince(testImpactBaseRef));
+        } else if (!impactAnalysis.useChangesSinceLastRun()) {
+            getLog().info("Test impact analysis: no successful run yet, executing all tests.");
+        }
+    }
+
+    /**
+     * Describes everything besides the files of the include graph which influences the test
+     * results: the PHP installation and its parameters, the include path and the dependencies,
+     * which may be used as phar archives the graph does not look into.
+     *
+     * @return the configuration as string
+     * @throws PhpException if the PHP installation can not be probed
+     */
+    private String impactConfiguration() throws PhpException {
+        final StringBuilder configuration = new StringBuilder();
+        final PhpRuntime runtime = getPhpRuntime();
+        configuration.append(getPhpExecutable()).append('\n');
+        configuration.append(getAdditionalPhpParameters()).append('\n');
+        configuration.append(runtime.getVersion()).append('\n');
+        configuration.append(runtime.getIniFile()).append('\n');
+        configuration.append(runtime.getIncludePath()).append('\n');
+        configuration.append(new TreeSet<String>(runtime.getExtensions())).append('\n');
+        configuration.append(testRunner.toLowerCase()).append('\n');
+        configuration.append(includePath(new String[] {
+            getSourceDirectory().getAbsolutePath(),
+            getTestSourceDirectory().getAbsolutePath(),
+            getDependenciesTargetDirectory().getAbsolutePath(),
+            getTestDependenciesTargetDirectory().getAbsolutePath(),
+        })).append('\n');
+        final List<String> elements = Lists.newArrayList(getCompileClasspathElements());
+        elements.addAll(getTestClasspathElements());
+        for (String element : elements) {
+            final File dependency = new File(element);
+            if (dependency.isDirectory()) {
+                // output directories of this project, their sources are part of the graph
+                continue;
+            }
+            configuration.append(element).append(':').append(dependency.length())
+                .append(':').append(dependency.lastModified()).append('\n');
+        }
+        return configuration.toString();
+    }
+
+    /**
+     * Asks git which files changed since the given revision, including uncommitted changes and
+     * files which are not added yet.
+     *
+     * @param revision the git revision to compare with
+     * @return absolute paths of the changed files
+     * @throws PhpException if git fails
+     */
+    private List<String> changedFilesSince(String revision) throws PhpException {
+        final List<String> changed = Lists.newArrayList();
+        git(new String[] {"diff", "--name-only", "--relative", revision}, changed,
+            "Failed to get changes since " + revision);
+        git(new String[] {"ls-files", "--others", "--exclude-standard"}, changed,
+            "Failed to get untracked files");
+        getLog().debug("Files changed since " + revision + ": " + changed.size());
+        return changed;
+    }
+
+    /**
+     * Executes git in the base directory and collects the files it prints.
+     *
+     * @param arguments the git arguments
+     * @param files where the absolute paths of the printed files are added
+     * @param failure the message if git fails
+     * @throws PhpException if git fails
+     */
+    private void git(String[] arguments, final List<String> files, String failure) throws PhpException {
+        final Commandline git = new Commandline();
+        git.setExecutable("git");
+        git.setWorkingDirectory(getBaseDir().getAbsolutePath());
+        git.addArguments(arguments);
+
+        final CommandLineUtils.StringStreamConsumer stderr = new CommandLineUtils.StringStreamConsumer();
+        try {
+            final int returnCode = CommandLineUtils.executeCommandLine(git, new StreamConsumer() {
+                @Override
+                public void consumeLine(String line) {
+                    if (line.trim().length() > 0) {
+                        files.add(new File(getBaseDir(), line.trim()).getAbsolutePath());
+                    }
+                }
+            }, stderr);
+            if (returnCode != 0) {
+                throw new PhpCoreException(failure + ": " + stderr.getOutput());
+            }
+        } catch (CommandLineException e) {
+            throw new PhpCoreException("Failed to execute git", e);
+        }
+    }
+
+    /**
+     * Prints the buffered console output of a test file at once.
+     *
+     * @param console the buffered output
+     */
+    private void printConsole(CharSequence console) {
+        if (console.length() == 0) {
+            return;
+        }
+        synchronized (System.out) {
+            System.out.print(console);
+            System.out.flush();
+        }
+    }
+
+    /**
+     * The path of a test file relative to the test source directory with "/" as separator.
+     *
+     * @param file the test file
+     * @return the relative path
+     */
+    private String relativeTestName(File file) {
+        final String base = getTestSourceDirectory().getAbsolutePath();
+        final String path = file.getAbsolutePath();
+        final String relative;
+        if (path.startsWith(base + File.separator)) {
+            relative = path.substring(base.length() + 1);
+        } else {
+            relative = file.getName();
+        }
+        return relative.replace(File.separatorChar, '/');
+    }
+
     private boolean isTestFile(File file) {
         // check if the test file matches the path
         if (testFile != null && !(File.separatorChar + file.getAbsolutePath()).endsWith(testFile)) {
@@ -252,8 +1048,18 @@ public final class PhpTest extends AbstractPhpMojo {
         return true;
     }
 
-    private String createCommandLine(File file, File targetFile) throws PhpException {
-        String command = includePathParameter(new String[]{
+    private List<String> createSuiteCommandLine(File script, File listFile) throws PhpException {
+        final PhpLauncher launcher = getLauncher(new String[]{
+            getSourceDirectory().getAbsolutePath(),
+            getTestSourceDirectory().getAbsolutePath(),
+            getDependenciesTargetDirectory().getAbsolutePath(),
+            getTestDependenciesTargetDirectory().getAbsolutePath()
+        });
+        return launcher.command(script.getAbsolutePath(), listFile.getAbsolutePath());
+    }
+
+    private List<String> createCommandLine(File file, File targetFile) throws PhpException {
+        final PhpLauncher launcher = getLauncher(new String[]{
             getSourceDirectory().getAbsolutePath(),
             getTestSourceDirectory().getAbsolutePath(),
             getDependenciesTargetDirectory().getAbsolutePath(),
@@ -262,48 +1068,135 @@ public final class PhpTest extends AbstractPhpMojo {
         });
 
         if (getPhpVersion() == PhpVersion.PHP5) {
-            command +=
-                " \"" + getTestDependenciesTargetDirectory().getAbsolutePath() + "/PHPUnit/TextUI/Maven.php\""
-                    + " \"" + file.getAbsolutePath() + "\""
-                    + " \"" + targetFile.getAbsolutePath() + "\"";
+            return launcher.command(
+                getTestDependenciesTargetDirectory().getAbsolutePath() + "/PHPUnit/TextUI/Maven.php",
+                file.getAbsolutePath(),
+                targetFile.getAbsolutePath());
         } else if (getPhpVersion() == PhpVersion.PHP4) {
-            command +=
-                " \"" + getTestDependenciesTargetDirectory().getAbsolutePath() + "/XMLWriter.php\""
-                    + " \"" + file.getAbsolutePath() + "\""
-                    + " \"" + targetFile.getAbsolutePath() + "\"";
+            return launcher.command(
+                getTestDependenciesTargetDirectory().getAbsolutePath() + "/XMLWriter.php",
+                file.getAbsolutePath(),
+                targetFile.getAbsolutePath());
         }
-        return command;
+        return launcher.command();
     }
 
     /**
-     * Parses the XML output.
+     * Parses the XML output. Only the outermost test suites are counted, the nested suites
+     * of data providers are part of them.
      *
      * @param file
-     * @throws SAXException
-     * @throws IOException
-     * @throws ParserConfigurationException
-     */
-    private void parseResultingXML(File file) throws SAXException, IOException, ParserConfigurationException {
-        final DocumentBuilderFactory fact = DocumentBuilderFactory.newInstance();
-        final DocumentBuilder builder = fact.newDocumentBuilder();
-
-        final Document doc = builder.parse(file);
-        final NodeList elementsByTagName = doc.getElementsByTagName("testsuite");
-        for (int i = 0; i < elementsByTagName.getLength(); i++) {
-            final Element e = (Element) elementsByTagName.item(i);
-
-            final SurefireResult surefireResult = new SurefireResult(
-                e.getAttribute("name"),
-                Integer.parseInt(e.getAttribute("tests")),
-                Integer.parseInt(e.getAttribute("failures")),
-                Integer.parseInt(e.getAttribute("errors")), e.getAttribute("time")
-            );
-            System.out.println(surefireResult.toString());
-            System.out.println();
-            surefireResults.add(surefireResult);
+     * @param console where to print the results to
+     * @return the results of the file
+     * @throws XMLStreamException if the file is no valid XML
+     * @throws IOException if the file can not be read
+     */
+    private List<SurefireResult> parseResultingXML(File file, StringBuilder console)
+        throws XMLStreamException, IOException {
+        final List<SurefireResult> results = readResults(file);
+        for (SurefireResult surefireResult : results) {
+            console.append(surefireResult.toString());
+            console.append("\n\n");
+            summary.add(surefireResult.getTests(), surefireResult.getFailure(), surefireResult.getErrors());
+        }
+        return results;
+    }
+
+    /**
+     * Streams through a result file and reads the test suites with their test cases,
+     * without building a document.
+     *
+     * @param file the PHPUnit result file
+     * @return the outermost test suites
+     * @throws XMLStreamException if the file is no valid XML
+     * @throws IOException if the file can not be read or has invalid counts
+     */
+    private List<SurefireResult> readResults(File file) throws XMLStreamException, IOException {
+        final List<SurefireResult> results = Lists.newArrayList();
+        final InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try {
+            final XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(in);
+            try {
+                SurefireResult suite = null;
+                int suiteDepth = 0;
+                String caseName = null;
+                String caseTime = null;
+                String caseProblem = null;
+                String caseMessage = null;
+                while (reader.hasNext()) {
+                    final int event = reader.next();
+                    if (event == XMLStreamConstants.START_ELEMENT) {
+                        final String element = reader.getLocalName();
+                        if ("testsuite".equals(element)) {
+                            if (suiteDepth == 0) {
+                                suite = new SurefireResult(
+                                    attribute(reader, "name"),
+                                    intAttribute(reader, "tests", file),
+                                    intAttribute(reader, "failures", file),
+                                    intAttribute(reader, "errors", file),
+                                    attribute(reader, "time"));
+                            }
+                            suiteDepth++;
+                        } else if ("testcase".equals(element)) {
+                            caseName = attribute(reader, "name");
+                            final String className = attribute(reader, "class");
+                            if (className.length() > 0) {
+                                caseName += "(" + className + ")";
+                            }
+                            caseTime = attribute(reader, "time");
+                            caseProblem = null;
+                            caseMessage = null;
+                        } else if (caseName != null && ("failure".equals(element) || "error".equals(element))) {
+                            caseProblem = element;
+                            caseMessage = reader.getElementText().trim();
+                        }
+                    } else if (event == XMLStreamConstants.END_ELEMENT) {
+                        final String element = reader.getLocalName();
+                        if ("testcase".equals(element) && caseName != null) {
+                            if (suite != null) {
+                                suite.addTestCase(new TestCaseResult(caseName, caseTime, caseProblem, caseMessage));
+                            }
+                            caseName = null;
+                        } else if ("testsuite".equals(element)) {
+                            suiteDepth--;
+                            if (suiteDepth == 0 && suite != null) {
+                                results.add(suite);
+                                suite = null;
+                            }
+                        }
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } finally {
+            in.close();
+        }
+        return results;
+    }
+
+    private static String attribute(XMLStreamReader reader, String name) {
+        final String value = reader.getAttributeValue(null, name);
+        return value == null ? "" : value;
+    }
+
+    private static int intAttribute(XMLStreamReader reader, String name, File file) throws IOException {
+        final String value = attribute(reader, name);
+        try {
+            return value.length() == 0 ? 0 : Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid " + name + " count \"" + value + "\" in " + file.getAbsolutePath(), e);
         }
     }
 
+    private static XMLInputFactory createXmlInputFactory() {
+        final XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+        return factory;
+    }
+
     /**
      * Write message to report file.
      *
@@ -329,18 +1222,9 @@ public final class PhpTest extends AbstractPhpMojo {
 
     @Override
     protected void handleProcessedFile(File file) throws MojoExecutionException {
-        if (!isIncludeInJar()) {
-            return;
-        }
-
-        try {
-            FileHelper.copyToFolder(
-                getTestSourceDirectory(),
-                getTargetTestClassesDirectory(),
-                file,
-                isForceOverwrite());
-        } catch (IOException e) {
-            throw new MojoExecutionException("Failed to copy test sources to target directory", e);
+        if (isIncludeInJar()) {
+            // copied in one pass after the walk
+            scheduleCopy(file);
         }
     }
 
@@ -353,6 +1237,7 @@ public final class PhpTest extends AbstractPhpMojo {
         private final int failure;
         private final int errors;
         private final String time;
+        private final List<TestCaseResult> testCases = Lists.newArrayList();
 
         public SurefireResult(String name, int tests, int failure, int errors, String time) {
             super();
@@ -363,13 +1248,50 @@ public final class PhpTest extends AbstractPhpMojo {
             this.time = time;
         }
 
+        boolean isPassed() {
+            return failure == 0 && errors == 0;
+        }
+
+        /**
+         * The time attribute in milliseconds.
+         *
+         * @return the duration, 0 if unknown
+         */
+        long getTimeMillis() {
+            try {
+                return Math.round(Double.parseDouble(time) * 1000);
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+
+        void addTestCase(TestCaseResult testCase) {
+            testCases.add(testCase);
+        }
+
+        /**
+         * The test cases of the suite, including those of nested suites.
+         *
+         * @return the test cases in execution order
+         */
+        List<TestCaseResult> getTestCases() {
+            return testCases;
+        }
+
         @Override
         public String toString() {
-            return "Running " + name + "\n"
-                + "Tests run: " + tests
-                + ", Failures: " + failure
-                + ", Errors: " + errors
-                + ", Time elapsed: " + time;
+            final StringBuilder result = new StringBuilder();
+            result.append("Running ").append(name).append("\n")
+                .append("Tests run: ").append(tests)
+                .append(", Failures: ").append(failure)
+                .append(", Errors: ").append(errors)
+                .append(", Time elapsed: ").append(time);
+            for (TestCaseResult testCase : testCases) {
+                if (!testCase.isPassed()) {
+                    result.append("\n").append(testCase);
+                }
+            }
+            return result.toString();
         }
 
         public int getTests() {
@@ -384,4 +1306,87 @@ public final class PhpTest extends AbstractPhpMojo {
             return errors;
         }
     }
+
+    /**
+     * A single test of a suite.
+     */
+    static final class TestCaseResult {
+        private final String name;
+        private final String time;
+        private final String problem;
+        private final String message;
+
+        TestCaseResult(String name, String time, String problem, String message) {
+            this.name = name;
+            this.time = time;
+            this.problem = problem;
+            this.message = message;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        String getTime() {
+            return time;
+        }
+
+        /**
+         * Why the test did not pass.
+         *
+         * @return "failure", "error" or null if it passed
+         */
+        String getProblem() {
+            return problem;
+        }
+
+        String getMessage() {
+            return message;
+        }
+
+        boolean isPassed() {
+            return problem == null;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder result = new StringBuilder(name);
+            result.append("  Time elapsed: ").append(time);
+            if (problem != null) {
+                result.append("  <<< ").append(problem.toUpperCase()).append("!");
+                if (message != null && message.length() > 0) {
+                    final int lineEnd = message.indexOf('\n');
+                    result.append("\n    ").append(lineEnd < 0 ? message : message.substring(0, lineEnd));
+                }
+            }
+            return result.toString();
+        }
+    }
+
+    /**
+     * A test file waiting to be executed.
+     */
+    private static final class PendingTest {
+        private final File file;
+        private final File targetFile;
+        private final String testName;
+
+        private PendingTest(File file, File targetFile, String testName) {
+            this.file = file;
+            this.targetFile = targetFile;
+            this.testName = testName;
+        }
+
+        File getFile() {
+            return file;
+        }
+
+        File getTargetFile() {
+            return targetFile;
+        }
+
+        String getTestName() {
+            return testName;
+        }
+    }
 }
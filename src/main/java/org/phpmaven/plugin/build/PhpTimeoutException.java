@@ -0,0 +1,48 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.phpmaven.plugin.build;
+
+import java.io.File;
+
+/**
+ * A PHP execution took too long and was killed.
+ *
+ * @author Tobias Sarnowski
+ */
+public class PhpTimeoutException extends PhpExecutionException {
+
+    private final long timeoutMillis;
+
+    /**
+     * Creates an exception for the killed execution.
+     *
+     * @param phpFile the PHP file which was executed or null
+     * @param phpErrorMessage the error message
+     * @param timeoutMillis the exceeded timeout
+     */
+    public PhpTimeoutException(File phpFile, String phpErrorMessage, long timeoutMillis) {
+        super(phpFile, phpErrorMessage);
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * The timeout which was exceeded.
+     *
+     * @return the timeout in milliseconds
+     */
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+}
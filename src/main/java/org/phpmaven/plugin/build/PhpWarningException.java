@@ -15,6 +15,7 @@
 package org.phpmaven.plugin.build;
 
 import java.io.File;
+import java.util.List;
 
 /**
  * Symbolizes an error, printed out by a PHP execution.
@@ -25,4 +26,8 @@ public class PhpWarningException extends PhpExecutionException {
     public PhpWarningException(File phpFile, String phpErrorMessage) {
         super(phpFile, phpErrorMessage);
     }
+
+    public PhpWarningException(File phpFile, String phpErrorMessage, List<PhpDiagnostic> diagnostics) {
+        super(phpFile, phpErrorMessage, diagnostics);
+    }
 }
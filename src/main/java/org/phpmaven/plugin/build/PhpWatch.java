@@ -0,0 +1,398 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.phpmaven.plugin.build;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.apache.maven.plugin.MojoExecutionException;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps running and validates every changed source file and executes the tests which
+ * include a changed file, as soon as files are saved. Dependencies are prepared once.
+ * Stop it with Ctrl+C.
+ *
+ * @requiresDependencyResolution test
+ * @goal watch
+ * @author Tobias Sarnowski
+ */
+public final class PhpWatch extends AbstractPhpMojo {
+
+    /**
+     * How long to wait for more changes after a change, in milliseconds. Saving a file often
+     * changes it more than once and editors save many files at once.
+     *
+     * @parameter
+     */
+    private int watchDebounce = 150;
+
+    /**
+     * If false, changed sources are only validated and no tests are executed.
+     *
+     * @parameter
+     */
+    private boolean watchTests = true;
+
+    /**
+     * Which postfix will be used to find test-cases, see php:test.
+     *
+     * @parameter
+     */
+    private String testPostfix = "Test";
+
+    /**
+     * A list of files which will not be validated, see php:process.
+     *
+     * @parameter
+     */
+    private String[] excludeFromValidation = new String[0];
+
+    /**
+     * If true changed sources will not be validated, see php:process.
+     *
+     * @parameter
+     */
+    private boolean ignoreValidate;
+
+    /**
+     * How the sources will be validated, "execute" or "lint", see php:process.
+     *
+     * @parameter
+     */
+    private String validationMode = PhpProcess.MODE_EXECUTE;
+
+    /**
+     * How many files will be checked by a single PHP process in lint mode, see php:process.
+     *
+     * @parameter
+     */
+    private int lintBatchSize = 200;
+
+    /**
+     * Only executes the test files ending with this path, see php:test.
+     *
+     * @parameter
+     */
+    private String testFile;
+
+    /**
+     * How many test files will be executed in parallel, see php:test.
+     *
+     * @parameter
+     */
+    private String forkCount;
+
+    /**
+     * How test files are executed with PHP 5, "isolated" or "suite", see php:test.
+     *
+     * @parameter
+     */
+    private String testRunner = PhpTest.RUNNER_ISOLATED;
+
+    /**
+     * Where the durations of the test files are stored, see php:test.
+     *
+     * @parameter
+     */
+    private String testTimings;
+
+    /**
+     * Validates the sources.
+     */
+    private PhpProcess process;
+
+    /**
+     * Executes the tests.
+     */
+    private PhpTest test;
+
+    /**
+     * Includes of sources and tests.
+     */
+    private IncludeGraph graph;
+
+    /**
+     * Decides which changed files belong to the sources and tests.
+     */
+    private SourceWalker selector;
+
+    /**
+     * The watched directories by their registration.
+     */
+    private final Map<WatchKey, Path> watchedDirectories = Maps.newHashMap();
+
+    /**
+     * Set if events were lost and all files have to be checked.
+     */
+    private boolean overflow;
+
+    @Override
+    protected void handlePhpFile(File file) throws MojoExecutionException {
+        // the watched directories are not walked
+    }
+
+    @Override
+    protected void handleProcessedFile(File file) throws MojoExecutionException {
+        // the watched directories are not walked
+    }
+
+    /**
+     * php:watch execution startpoint.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void execute() throws MojoExecutionException {
+        process = new PhpProcess();
+        process.configureFrom(this);
+        process.setGoalTimeout(0);
+        process.setExcludeFromValidation(excludeFromValidation);
+        process.setIgnoreValidate(ignoreValidate);
+        process.setValidationMode(validationMode);
+        process.setLintBatchSize(lintBatchSize);
+        process.checkValidationMode();
+        test = new PhpTest();
+        test.configureFrom(this);
+        test.setGoalTimeout(0);
+        test.setTestPostfix(testPostfix);
+        test.setTestFile(testFile);
+        test.setForkCount(forkCount);
+        test.setTestRunner(testRunner);
+        test.setTestTimings(testTimings);
+        selector = new SourceWalker(Arrays.asList(getIncludes()), Arrays.asList(getExcludes()), true);
+
+        WatchService watcher = null;
+        try {
+            getLog().info("Using " + getPhpRuntime());
+            process.prepareCompileDependencies();
+            if (watchTests) {
+                test.prepareTestDependencies();
+            }
+            graph = updateIncludeGraph("include-graph-watch.bin", graphRoots(), new String[] {
+                getSourceDirectory().getAbsolutePath(),
+                getTestSourceDirectory().getAbsolutePath(),
+                getDependenciesTargetDirectory().getAbsolutePath(),
+                getTestDependenciesTargetDirectory().getAbsolutePath(),
+                IncludeGraph.CURRENT_DIRECTORY,
+            });
+
+            watcher = FileSystems.getDefault().newWatchService();
+            for (File directory : watchedRoots()) {
+                register(watcher, directory.toPath(), null);
+            }
+            getLog().info("Watching " + watchedDirectories.size() + " directories for changes, press Ctrl+C to stop.");
+
+            while (true) {
+                final Set<File> changed = awaitChanges(watcher);
+                final long start = System.currentTimeMillis();
+                if (check(changed)) {
+                    getLog().info("Done in " + (System.currentTimeMillis() - start) + " ms, waiting for changes.");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            getLog().info("Stopped watching.");
+        } catch (ClosedWatchServiceException e) {
+            getLog().info("Stopped watching.");
+        } catch (PhpException e) {
+            throw new MojoExecutionException(e.getMessage(), e);
+        } catch (IOException e) {
+            throw new MojoExecutionException(e.getMessage(), e);
+        } finally {
+            if (watcher != null) {
+                try {
+                    watcher.close();
+                } catch (IOException e) {
+                    getLog().debug(e);
+                }
+            }
+            process.shutdownWorkerPool();
+            test.shutdownWorkerPool();
+        }
+    }
+
+    /**
+     * Waits for changes and collects further changes until none came in for {@link #watchDebounce}.
+     *
+     * @param watcher the registered watcher
+     * @return the changed, created and deleted files
+     * @throws InterruptedException if the goal is stopped
+     * @throws IOException if new directories can not be watched
+     */
+    private Set<File> awaitChanges(WatchService watcher) throws InterruptedException, IOException {
+        final Set<File> changed = Sets.newHashSet();
+        WatchKey key = watcher.take();
+        while (key != null) {
+            final Path directory = watchedDirectories.get(key);
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    overflow = true;
+                } else if (directory != null) {
+                    final Path path = directory.resolve((Path) event.context());
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+                        // files may have been created before the directory was registered
+                        register(watcher, path, changed);
+                    } else {
+                        changed.add(path.toFile());
+                    }
+                }
+            }
+            if (!key.reset()) {
+                watchedDirectories.remove(key);
+            }
+            key = watcher.poll(Math.max(1, watchDebounce), TimeUnit.MILLISECONDS);
+        }
+        return changed;
+    }
+
+    /**
+     * Validates the changed sources and executes the tests which include changed files.
+     *
+     * @param changed the changed files
+     * @return false if no content changed
+     * @throws IOException if the changed files can not be read
+     * @throws PhpException if the tests can not be found out
+     */
+    private boolean check(Set<File> changed) throws IOException, PhpException {
+        final Set<String> changedPaths = Sets.newHashSet();
+        if (overflow) {
+            overflow = false;
+            getLog().info("Too many changes, checking all files.");
+            changedPaths.addAll(graph.update(graphRoots(), getPhpFileEnding()));
+        } else {
+            for (File file : changed) {
+                // touched files do not count
+                if (file.getName().endsWith("." + getPhpFileEnding()) && graph.update(file)) {
+                    changedPaths.add(file.getAbsolutePath());
+                }
+            }
+        }
+        if (changedPaths.isEmpty()) {
+            return false;
+        }
+
+        final List<Exception> failures = Lists.newArrayList();
+        final List<File> sources = select(changedPaths, getSourceDirectory());
+        for (File source : sources) {
+            getLog().info("Validating " + source.getAbsolutePath());
+        }
+        failures.addAll(process.validate(sources));
+
+        if (watchTests) {
+            final Set<String> affected = Sets.newHashSet(changedPaths);
+            affected.addAll(graph.getDependents(changedPaths));
+            final List<File> tests = select(affected, getTestSourceDirectory());
+            if (!tests.isEmpty()) {
+                getLog().info("Executing " + tests.size() + " affected test files");
+                failures.addAll(test.runTests(tests));
+            }
+        }
+
+        for (Exception failure : failures) {
+            getLog().error(failure.getMessage());
+        }
+        return true;
+    }
+
+    /**
+     * The existing files within a directory which the walk of php:process or php:test would visit.
+     */
+    private List<File> select(Set<String> paths, File directory) {
+        final List<File> selected = Lists.newArrayList();
+        for (String path : paths) {
+            final File file = new File(path);
+            if (file.isFile() && selector.isSelected(directory, file)) {
+                selected.add(file);
+            }
+        }
+        Collections.sort(selected);
+        return selected;
+    }
+
+    /**
+     * Registers a directory and all directories within.
+     *
+     * @param watcher the watcher
+     * @param root the directory
+     * @param files receives the files found, may be null
+     * @throws IOException if a directory can not be registered
+     */
+    private void register(final WatchService watcher, Path root, final Set<File> files) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                final WatchKey key = dir.register(watcher,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY,
+                    StandardWatchEventKinds.ENTRY_DELETE);
+                watchedDirectories.put(key, dir);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (files != null) {
+                    files.add(file.toFile());
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private List<File> watchedRoots() {
+        final List<File> roots = Lists.newArrayList();
+        if (getSourceDirectory().isDirectory()) {
+            roots.add(getSourceDirectory());
+        }
+        if (watchTests && getTestSourceDirectory().isDirectory()) {
+            roots.add(getTestSourceDirectory());
+        }
+        return roots;
+    }
+
+    private List<File> graphRoots() {
+        final List<File> roots = Lists.newArrayList();
+        for (File root : Arrays.asList(
+            getSourceDirectory(),
+            getTestSourceDirectory(),
+            getDependenciesTargetDirectory(),
+            getTestDependenciesTargetDirectory())) {
+            if (root.isDirectory()) {
+                roots.add(root);
+            }
+        }
+        return roots;
+    }
+}
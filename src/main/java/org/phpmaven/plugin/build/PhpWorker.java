@@ -0,0 +1,266 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.phpmaven.plugin.build;
+
+import com.google.common.collect.Lists;
+import org.codehaus.plexus.util.cli.StreamConsumer;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A long running PHP process which executes files on request. The PHP side
+ * is implemented by the bundled PhpWorker.php script.
+ *
+ * @author Tobias Sarnowski
+ */
+final class PhpWorker {
+
+    /**
+     * Introduces a response frame of the worker script.
+     */
+    static final String FRAME_MARKER = "#PHPMAVEN-FRAME ";
+
+    /**
+     * Frame status of a completely executed file.
+     */
+    static final String STATUS_OK = "ok";
+
+    private final Process process;
+    private final ProcessWatchdog watchdog;
+    private final OutputStream stdin;
+    private final InputStream stdout;
+    private final List<String> stderr = Collections.synchronizedList(Lists.<String>newArrayList());
+    private final ByteArrayOutputStream lineBuffer = new ByteArrayOutputStream();
+    private int lastLineLength;
+    private int executions;
+    private boolean alive = true;
+
+    /**
+     * Starts a new worker process.
+     *
+     * @param command the executable and arguments which start the worker script
+     * @param watchdog kills the worker if a file takes too long
+     * @throws PhpCoreException if the process can not be started
+     */
+    PhpWorker(List<String> command, ProcessWatchdog watchdog) throws PhpCoreException {
+        this.watchdog = watchdog;
+        try {
+            process = PhpLauncher.start(command);
+        } catch (IOException e) {
+            throw new PhpCoreException("Failed to start PHP worker: " + command, e);
+        }
+        stdin = process.getOutputStream();
+        stdout = new BufferedInputStream(process.getInputStream());
+
+        PhpLauncher.pump(process.getErrorStream(), new StreamConsumer() {
+            @Override
+            public void consumeLine(String line) {
+                stderr.add(line);
+            }
+        });
+    }
+
+    /**
+     * Lets the worker execute a file.
+     *
+     * @param file the PHP file to execute
+     * @param includePath the include path to use for the file
+     * @param output handler for the output lines of the file
+     * @param timeoutMillis after how many milliseconds the worker will be killed, 0 for no limit
+     * @return the outcome of the execution
+     * @throws IOException if the communication with the worker fails
+     */
+    Result execute(File file, String includePath, StreamConsumer output, long timeoutMillis) throws IOException {
+        if (timeoutMillis <= 0) {
+            return execute(file, includePath, output);
+        }
+
+        final ProcessWatchdog.Watch watch = watchdog.watch(process, timeoutMillis);
+        Result result;
+        try {
+            result = execute(file, includePath, output);
+        } catch (IOException e) {
+            if (!watch.isExpired()) {
+                throw e;
+            }
+            // killed within a frame
+            result = finish(false);
+        } finally {
+            watch.cancel();
+        }
+        if (watch.isExpired()) {
+            alive = false;
+            return new Result(result.getReturnCode(), result.getErrors(), true);
+        }
+        return result;
+    }
+
+    private Result execute(File file, String includePath, StreamConsumer output) throws IOException {
+        executions++;
+        stdin.write((file.getAbsolutePath() + "\t" + includePath + "\n").getBytes());
+        stdin.flush();
+
+        while (true) {
+            final String line = readLine(Integer.MAX_VALUE);
+            if (line == null) {
+                // worker died without a frame, e.g. a crash of the interpreter
+                return finish(false);
+            }
+            if (!line.startsWith(FRAME_MARKER)) {
+                // output which escaped the worker's buffers
+                output.consumeLine(line);
+                continue;
+            }
+
+            final String[] header = line.substring(FRAME_MARKER.length()).split(" ");
+            if (header.length != 2) {
+                throw new IOException("Invalid frame from PHP worker: " + line);
+            }
+            readFrame(Integer.parseInt(header[1]), output);
+            return finish(STATUS_OK.equals(header[0]));
+        }
+    }
+
+    /**
+     * How many files were handed to this worker.
+     *
+     * @return number of executions
+     */
+    int getExecutions() {
+        return executions;
+    }
+
+    /**
+     * If the worker is still able to take requests.
+     *
+     * @return if the process is still running
+     */
+    boolean isAlive() {
+        return alive;
+    }
+
+    /**
+     * Stops the worker.
+     */
+    void close() {
+        try {
+            if (alive) {
+                alive = false;
+                stdin.write('\n');
+                stdin.flush();
+            }
+            stdin.close();
+            process.waitFor();
+        } catch (IOException e) {
+            // worker is already gone
+            process.destroy();
+        } catch (InterruptedException e) {
+            process.destroy();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Result finish(boolean completed) throws IOException {
+        int returnCode = 0;
+        if (!completed) {
+            alive = false;
+            try {
+                returnCode = process.waitFor();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for PHP worker");
+            }
+        }
+
+        final List<String> errors;
+        synchronized (stderr) {
+            errors = Lists.newArrayList(stderr);
+            stderr.clear();
+        }
+        return new Result(returnCode, errors, false);
+    }
+
+    /**
+     * Reads a single line, but never more than the given number of bytes.
+     * The number of consumed bytes is left in {@link #lastLineLength}.
+     */
+    private String readLine(int limit) throws IOException {
+        lineBuffer.reset();
+        lastLineLength = 0;
+        while (lastLineLength < limit) {
+            final int b = stdout.read();
+            if (b == -1) {
+                return lineBuffer.size() == 0 ? null : lineBuffer.toString();
+            }
+            lastLineLength++;
+            if (b == '\n') {
+                return lineBuffer.toString();
+            }
+            lineBuffer.write(b);
+        }
+        return lineBuffer.toString();
+    }
+
+    /**
+     * Hands the content of a frame line by line to the consumer, so the output
+     * of a file never has to be kept as a whole.
+     */
+    private void readFrame(int length, StreamConsumer output) throws IOException {
+        int remaining = length;
+        while (remaining > 0) {
+            final String line = readLine(remaining);
+            if (line == null) {
+                throw new EOFException("PHP worker closed its output within a frame");
+            }
+            remaining -= lastLineLength;
+            output.consumeLine(line);
+        }
+    }
+
+    /**
+     * The outcome of a single execution within a worker.
+     */
+    static final class Result {
+        private final int returnCode;
+        private final List<String> errors;
+        private final boolean timedOut;
+
+        Result(int returnCode, List<String> errors, boolean timedOut) {
+            this.returnCode = returnCode;
+            this.errors = errors;
+            this.timedOut = timedOut;
+        }
+
+        int getReturnCode() {
+            return returnCode;
+        }
+
+        List<String> getErrors() {
+            return errors;
+        }
+
+        boolean isTimedOut() {
+            return timedOut;
+        }
+    }
+}
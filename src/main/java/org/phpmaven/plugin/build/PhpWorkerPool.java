@@ -0,0 +1,117 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.phpmaven.plugin.build;
+
+import com.google.common.base.Preconditions;
+import org.codehaus.plexus.util.cli.StreamConsumer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * A bounded pool of long running {@link PhpWorker}s. Workers are started lazily
+ * and will be replaced after a configurable number of executions to keep global
+ * state from piling up.
+ *
+ * @author Tobias Sarnowski
+ */
+final class PhpWorkerPool {
+
+    private final List<String> command;
+    private final ProcessWatchdog watchdog;
+    private final int recycleAfter;
+    private final Semaphore permits;
+    private final BlockingQueue<PhpWorker> idleWorkers = new LinkedBlockingQueue<PhpWorker>();
+    private volatile boolean shutdown;
+
+    /**
+     * Creates a new pool.
+     *
+     * @param command the executable and arguments which start a worker
+     * @param size the maximum number of workers
+     * @param recycleAfter after how many files a worker will be replaced
+     * @param watchdog kills workers which take too long for a file
+     */
+    PhpWorkerPool(List<String> command, int size, int recycleAfter, ProcessWatchdog watchdog) {
+        Preconditions.checkNotNull(command, "Command");
+        Preconditions.checkNotNull(watchdog, "Watchdog");
+        Preconditions.checkArgument(size > 0, "Pool size");
+        Preconditions.checkArgument(recycleAfter > 0, "Recycle after");
+
+        this.command = command;
+        this.recycleAfter = recycleAfter;
+        this.watchdog = watchdog;
+        this.permits = new Semaphore(size, true);
+    }
+
+    /**
+     * Executes a file in one of the pooled workers. Blocks until a worker
+     * is available.
+     *
+     * @param file the PHP file to execute
+     * @param includePath the include path for the file
+     * @param output handler for the output lines of the file
+     * @param timeoutMillis after how many milliseconds the worker will be killed, 0 for no limit
+     * @return the outcome of the execution
+     * @throws PhpCoreException if no worker could be started or the worker failed
+     */
+    PhpWorker.Result execute(File file, String includePath, StreamConsumer output, long timeoutMillis)
+        throws PhpCoreException {
+        Preconditions.checkState(!shutdown, "Worker pool already shut down");
+
+        permits.acquireUninterruptibly();
+        PhpWorker worker = idleWorkers.poll();
+        try {
+            if (worker == null) {
+                worker = new PhpWorker(command, watchdog);
+            }
+            return worker.execute(file, includePath, output, timeoutMillis);
+        } catch (IOException e) {
+            worker.close();
+            throw new PhpCoreException("PHP worker failed while executing " + file.getAbsolutePath(), e);
+        } finally {
+            release(worker);
+            permits.release();
+        }
+    }
+
+    /**
+     * Stops all idle workers. Workers still in use are stopped as soon as they
+     * are returned.
+     */
+    void shutdown() {
+        shutdown = true;
+        PhpWorker worker = idleWorkers.poll();
+        while (worker != null) {
+            worker.close();
+            worker = idleWorkers.poll();
+        }
+    }
+
+    private void release(PhpWorker worker) {
+        if (worker == null) {
+            return;
+        }
+        if (!shutdown && worker.isAlive() && worker.getExecutions() < recycleAfter) {
+            idleWorkers.add(worker);
+        } else {
+            worker.close();
+        }
+    }
+}
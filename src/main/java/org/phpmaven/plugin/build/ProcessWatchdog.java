@@ -0,0 +1,118 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.phpmaven.plugin.build;
+
+import com.google.common.base.Preconditions;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Kills processes which run longer than allowed. One watchdog thread serves all
+ * watched processes.
+ *
+ * @author Tobias Sarnowski
+ */
+final class ProcessWatchdog {
+
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            final Thread thread = new Thread(runnable, "php-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * Starts to watch a process.
+     *
+     * @param process the process to watch
+     * @param timeoutMillis after how many milliseconds the process will be killed
+     * @return the watch, has to be cancelled as soon as the process finished
+     */
+    Watch watch(Process process, long timeoutMillis) {
+        Preconditions.checkNotNull(process, "Process");
+        Preconditions.checkArgument(timeoutMillis > 0, "Timeout");
+        final Watch watch = new Watch(process);
+        watch.future = timer.schedule(watch, timeoutMillis, TimeUnit.MILLISECONDS);
+        return watch;
+    }
+
+    /**
+     * Kills a process and, if the JVM supports it (Java 9 and later), all of its
+     * descendants. Otherwise children started by PHP may survive.
+     *
+     * @param process the process to kill
+     */
+    static void killTree(Process process) {
+        try {
+            // the public interfaces, the implementing classes are not accessible
+            final Class<?> handleClass = Class.forName("java.lang.ProcessHandle");
+            final Class<?> streamClass = Class.forName("java.util.stream.Stream");
+            final Method destroyForcibly = handleClass.getMethod("destroyForcibly");
+
+            final Object handle = Process.class.getMethod("toHandle").invoke(process);
+            final Object descendants = handleClass.getMethod("descendants").invoke(handle);
+            for (Object child : (Object[]) streamClass.getMethod("toArray").invoke(descendants)) {
+                destroyForcibly.invoke(child);
+            }
+        /*CHECKSTYLE:OFF*/
+        } catch (Exception e) {
+        /*CHECKSTYLE:ON*/
+            // no process handles available, only the process itself can be killed
+        }
+        process.destroy();
+    }
+
+    /**
+     * A watched process.
+     */
+    static final class Watch implements Runnable {
+        private final Process process;
+        private ScheduledFuture<?> future;
+        private volatile boolean expired;
+
+        private Watch(Process process) {
+            this.process = process;
+        }
+
+        @Override
+        public void run() {
+            expired = true;
+            killTree(process);
+        }
+
+        /**
+         * Stops watching the process.
+         */
+        void cancel() {
+            future.cancel(false);
+        }
+
+        /**
+         * If the process was killed because it took too long.
+         *
+         * @return if the timeout was reached
+         */
+        boolean isExpired() {
+            return expired;
+        }
+    }
+}
@@ -0,0 +1,267 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.phpmaven.plugin.build;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.codehaus.plexus.util.DirectoryScanner;
+import org.codehaus.plexus.util.SelectorUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Walks a source directory like plexus' DirectoryWalker: excluded files and directories
+ * are skipped, excluded directories are not even entered, and every other regular file
+ * which is included is handed to a visitor. The Ant-style patterns are compiled once,
+ * file types come from the attributes the walk reads anyway.
+ *
+ * @author Tobias Sarnowski
+ */
+final class SourceWalker {
+
+    /**
+     * Receives the files found by a walk.
+     */
+    interface Visitor {
+        /**
+         * Called for every included regular file, in walk order.
+         *
+         * @param file the file
+         */
+        void visitFile(File file);
+    }
+
+    private final List<AntPattern> includes;
+    private final List<AntPattern> excludes;
+
+    /**
+     * Compiles the patterns.
+     *
+     * @param includes patterns of files to include, everything if empty
+     * @param excludes patterns of files and directories to exclude
+     * @param scmExcludes if the default excludes of version control files should be added
+     */
+    SourceWalker(List<String> includes, List<String> excludes, boolean scmExcludes) {
+        this.includes = compile(includes.isEmpty() ? Arrays.asList("**") : includes);
+        final List<String> allExcludes = Lists.newArrayList(excludes);
+        if (scmExcludes) {
+            allExcludes.addAll(Arrays.asList(DirectoryScanner.DEFAULTEXCLUDES));
+        }
+        this.excludes = compile(allExcludes);
+    }
+
+    /**
+     * Walks a directory.
+     *
+     * @param baseDirectory the directory, patterns are relative to it
+     * @param visitor receives the files
+     * @throws IOException if the directory can not be walked
+     */
+    void walk(final File baseDirectory, final Visitor visitor) throws IOException {
+        Preconditions.checkArgument(baseDirectory.isDirectory(), "Base directory");
+        final Path base = baseDirectory.toPath();
+        Files.walkFileTree(base, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE,
+            new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    if (!dir.equals(base) && matchesAny(excludes, split(base.relativize(dir)))) {
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (attrs.isRegularFile()) {
+                        final String[] path = split(base.relativize(file));
+                        if (!matchesAny(excludes, path) && matchesAny(includes, path)) {
+                            visitor.visitFile(file.toFile());
+                        }
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    // unreadable or a link loop, DirectoryWalker ignored those as well
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+    }
+
+    /**
+     * Checks if a walk would visit a file, without walking.
+     *
+     * @param baseDirectory the directory the patterns are relative to
+     * @param file a file within the directory
+     * @return if the file is included and neither it nor one of its directories is excluded
+     */
+    boolean isSelected(File baseDirectory, File file) {
+        final Path relative = baseDirectory.getAbsoluteFile().toPath().relativize(file.getAbsoluteFile().toPath());
+        final String[] path = split(relative);
+        if (path.length == 0 || "..".equals(path[0])) {
+            return false;
+        }
+        for (int i = 1; i < path.length; i++) {
+            if (matchesAny(excludes, Arrays.copyOf(path, i))) {
+                return false;
+            }
+        }
+        return !matchesAny(excludes, path) && matchesAny(includes, path);
+    }
+
+    private static String[] split(Path relative) {
+        final String[] segments = new String[relative.getNameCount()];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = relative.getName(i).toString();
+        }
+        return segments;
+    }
+
+    private static boolean matchesAny(List<AntPattern> patterns, String[] path) {
+        for (AntPattern pattern : patterns) {
+            if (pattern.matches(path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static List<AntPattern> compile(List<String> patterns) {
+        final ImmutableList.Builder<AntPattern> compiled = ImmutableList.builder();
+        for (String pattern : patterns) {
+            compiled.add(new AntPattern(pattern));
+        }
+        return compiled.build();
+    }
+
+    /**
+     * An Ant-style pattern like "**&#47;*.php", split into its path segments.
+     */
+    private static final class AntPattern {
+        private static final String ANY_DIRECTORIES = "**";
+        private static final String REGEX_PREFIX = "%regex[";
+        private static final String ANT_PREFIX = "%ant[";
+
+        private final String pattern;
+        private final boolean delegate;
+        private final Pattern[] segments;
+
+        private AntPattern(String pattern) {
+            String normalized = pattern.trim();
+            if (!normalized.startsWith(REGEX_PREFIX)) {
+                normalized = normalized.replace('\\', '/');
+            }
+            // "dir/" means everything inside of dir
+            if (normalized.endsWith("/")) {
+                normalized += ANY_DIRECTORIES;
+            }
+            this.pattern = normalized;
+
+            // %regex[...] and %ant[...] are left to plexus
+            this.delegate = normalized.startsWith(REGEX_PREFIX) || normalized.startsWith(ANT_PREFIX);
+            if (delegate) {
+                segments = null;
+                return;
+            }
+
+            final String[] parts = normalized.startsWith("/")
+                ? normalized.substring(1).split("/")
+                : normalized.split("/");
+            segments = new Pattern[parts.length];
+            for (int i = 0; i < parts.length; i++) {
+                segments[i] = ANY_DIRECTORIES.equals(parts[i]) ? null : Pattern.compile(toRegex(parts[i]));
+            }
+        }
+
+        private boolean matches(String[] path) {
+            if (delegate) {
+                return SelectorUtils.matchPath(pattern, joinPath(path), true);
+            }
+            return matches(0, path, 0);
+        }
+
+        private boolean matches(int patternIndex, String[] path, int pathIndex) {
+            int p = patternIndex;
+            int s = pathIndex;
+            while (p < segments.length) {
+                if (segments[p] == null) {
+                    // "**" matches any number of directories, including none
+                    while (p < segments.length && segments[p] == null) {
+                        p++;
+                    }
+                    if (p == segments.length) {
+                        return true;
+                    }
+                    for (int i = s; i < path.length; i++) {
+                        if (matches(p, path, i)) {
+                            return true;
+                        }
+                    }
+                    return false;
+                }
+                if (s >= path.length || !segments[p].matcher(path[s]).matches()) {
+                    return false;
+                }
+                p++;
+                s++;
+            }
+            return s == path.length;
+        }
+
+        private static String joinPath(String[] path) {
+            final StringBuilder joined = new StringBuilder();
+            for (String segment : path) {
+                if (joined.length() > 0) {
+                    joined.append(File.separatorChar);
+                }
+                joined.append(segment);
+            }
+            return joined.toString();
+        }
+
+        private static String toRegex(String glob) {
+            final StringBuilder regex = new StringBuilder();
+            final StringBuilder literal = new StringBuilder();
+            for (char c : glob.toCharArray()) {
+                if (c == '*' || c == '?') {
+                    if (literal.length() > 0) {
+                        regex.append(Pattern.quote(literal.toString()));
+                        literal.setLength(0);
+                    }
+                    regex.append(c == '*' ? ".*" : ".");
+                } else {
+                    literal.append(c);
+                }
+            }
+            if (literal.length() > 0) {
+                regex.append(Pattern.quote(literal.toString()));
+            }
+            return regex.toString();
+        }
+    }
+}
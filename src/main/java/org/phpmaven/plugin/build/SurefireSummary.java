@@ -0,0 +1,54 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.phpmaven.plugin.build;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread safe totals of all test results of a test run.
+ *
+ * @author Tobias Sarnowski
+ */
+final class SurefireSummary {
+
+    private final AtomicInteger tests = new AtomicInteger();
+    private final AtomicInteger failures = new AtomicInteger();
+    private final AtomicInteger errors = new AtomicInteger();
+
+    /**
+     * Adds the results of a test suite.
+     *
+     * @param suiteTests number of executed tests
+     * @param suiteFailures number of failed tests
+     * @param suiteErrors number of tests with errors
+     */
+    void add(int suiteTests, int suiteFailures, int suiteErrors) {
+        tests.addAndGet(suiteTests);
+        failures.addAndGet(suiteFailures);
+        errors.addAndGet(suiteErrors);
+    }
+
+    int getTests() {
+        return tests.get();
+    }
+
+    int getFailures() {
+        return failures.get();
+    }
+
+    int getErrors() {
+        return errors.get();
+    }
+}
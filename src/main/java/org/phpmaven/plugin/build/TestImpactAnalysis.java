@@ -0,0 +1,248 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.phpmaven.plugin.build;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.codehaus.plexus.util.FileUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Decides which test files have to be executed because they include (directly or
+ * indirectly) a changed file. Results of passed test files are kept, so skipped
+ * test files can report their previous results. The include graph does not look into
+ * dependency archives, so a changed configuration (like another dependency) affects
+ * all test files.
+ *
+ * @author Tobias Sarnowski
+ */
+final class TestImpactAnalysis {
+
+    private static final int MAGIC = 0x50484d54;
+    private static final int VERSION = 2;
+
+    private final IncludeGraph graph;
+    private final File stateFile;
+    private final File resultStore;
+    private final String configuration;
+    private Set<String> affected;
+
+    /**
+     * Creates a new analysis.
+     *
+     * @param graph the up to date include graph of tests and sources
+     * @param stateFile where the state of the last successful run is stored
+     * @param resultStore where the results of passed tests are kept
+     * @param configuration everything besides the files of the graph which influences the results
+     */
+    TestImpactAnalysis(IncludeGraph graph, File stateFile, File resultStore, String configuration) {
+        Preconditions.checkNotNull(graph, "Include graph");
+        Preconditions.checkNotNull(stateFile, "State file");
+        Preconditions.checkNotNull(resultStore, "Result store");
+        Preconditions.checkNotNull(configuration, "Configuration");
+        this.graph = graph;
+        this.stateFile = stateFile;
+        this.resultStore = resultStore;
+        this.configuration = hex(newDigest().digest(configuration.getBytes()));
+    }
+
+    /**
+     * Checks if the last successful run used the same configuration, so results of test
+     * files which include no changed file can be reused.
+     *
+     * @return false if there was no successful run with this configuration yet
+     */
+    boolean isConfigurationUnchanged() {
+        try {
+            return readState() != null;
+        } catch (IOException e) {
+            // missing, corrupt or from another version
+            return false;
+        }
+    }
+
+    /**
+     * Uses all files which changed since the last successful run.
+     *
+     * @return false if there was no successful run with this configuration yet and all tests
+     *     have to be executed
+     */
+    boolean useChangesSinceLastRun() {
+        final Map<String, byte[]> previous;
+        try {
+            previous = readState();
+        } catch (IOException e) {
+            // missing, corrupt or from another version
+            return false;
+        }
+        if (previous == null) {
+            return false;
+        }
+        final Map<String, byte[]> current = graph.getHashes();
+
+        final Set<String> changed = Sets.newHashSet();
+        for (Map.Entry<String, byte[]> entry : current.entrySet()) {
+            if (!Arrays.equals(entry.getValue(), previous.get(entry.getKey()))) {
+                changed.add(entry.getKey());
+            }
+        }
+        for (String path : previous.keySet()) {
+            if (!current.containsKey(path)) {
+                changed.add(path);
+            }
+        }
+        useChangedFiles(changed);
+        return true;
+    }
+
+    /**
+     * Uses the given files as changed files.
+     *
+     * @param changed absolute paths of the changed files
+     */
+    void useChangedFiles(Collection<String> changed) {
+        final Set<String> changedFiles = Sets.newHashSet(changed);
+        affected = Sets.newHashSet(changedFiles);
+        affected.addAll(graph.getDependents(changedFiles));
+    }
+
+    /**
+     * Checks if a test file has to be executed.
+     *
+     * @param testFile the test file
+     * @return if the test file or one of its includes changed
+     */
+    boolean isAffected(File testFile) {
+        return affected == null || affected.contains(testFile.getAbsolutePath());
+    }
+
+    /**
+     * Copies the stored result of a passed test to the report directory.
+     *
+     * @param testName the relative path of the test file
+     * @param resultFile where the result is expected
+     * @return false if there is no stored result and the test has to be executed
+     * @throws IOException if the result can not be copied
+     */
+    boolean restoreResult(String testName, File resultFile) throws IOException {
+        final File stored = new File(resultStore, testName + ".xml");
+        if (!stored.isFile()) {
+            return false;
+        }
+        FileUtils.copyFile(stored, resultFile);
+        return true;
+    }
+
+    /**
+     * Keeps the result of a passed test or forgets the result of a failed one.
+     *
+     * @param testName the relative path of the test file
+     * @param resultFile the result of the test
+     * @param passed if the test passed
+     * @throws IOException if the result can not be copied
+     */
+    void storeResult(String testName, File resultFile, boolean passed) throws IOException {
+        final File stored = new File(resultStore, testName + ".xml");
+        if (passed && resultFile.isFile()) {
+            FileUtils.copyFile(resultFile, stored);
+        } else {
+            stored.delete();
+        }
+    }
+
+    /**
+     * Remembers the current state of all files as the last successful run.
+     *
+     * @throws IOException if the state can not be written
+     */
+    void saveState() throws IOException {
+        final Map<String, byte[]> hashes = graph.getHashes();
+        stateFile.getParentFile().mkdirs();
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(stateFile)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(configuration);
+            out.writeInt(hashes.size());
+            for (Map.Entry<String, byte[]> entry : hashes.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeShort(entry.getValue().length);
+                out.write(entry.getValue());
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Reads the hashes of the last successful run.
+     *
+     * @return the hashes by file or null if the run used another configuration
+     * @throws IOException if the state can not be read
+     */
+    private Map<String, byte[]> readState() throws IOException {
+        final Map<String, byte[]> state = Maps.newHashMap();
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(stateFile)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Unsupported test impact state " + stateFile.getAbsolutePath());
+            }
+            if (!configuration.equals(in.readUTF())) {
+                return null;
+            }
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                final String path = in.readUTF();
+                final byte[] hash = new byte[in.readShort()];
+                in.readFully(hash);
+                state.put(path, hash);
+            }
+        } finally {
+            in.close();
+        }
+        return state;
+    }
+
+    private static String hex(byte[] bytes) {
+        final StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(Integer.toHexString((b & 0xff) | 0x100).substring(1));
+        }
+        return hex.toString();
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 not supported", e);
+        }
+    }
+}
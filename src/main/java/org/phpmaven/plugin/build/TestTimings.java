@@ -0,0 +1,258 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.phpmaven.plugin.build;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * How long each test file took when it was executed last. Stored as a plain text file
+ * with one "milliseconds TAB test file" line per test file, sorted by test file, so it
+ * can be cached between CI runs and every node computes the same shards from it. The
+ * durations are used to split test files into shards and to start the longest first.
+ *
+ * @author Tobias Sarnowski
+ */
+final class TestTimings {
+
+    private static final String ENCODING = "UTF-8";
+
+    /**
+     * Estimate for unknown test files if no durations are known at all.
+     */
+    private static final double DEFAULT_MILLIS_PER_BYTE = 1.0 / 1024;
+
+    private final File file;
+    private final ConcurrentMap<String, Long> timings = new ConcurrentHashMap<String, Long>();
+
+    private TestTimings(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Reads the timings.
+     *
+     * @param file where the timings are stored
+     * @return the timings, empty if there are none or they can not be read
+     */
+    static TestTimings load(File file) {
+        Preconditions.checkNotNull(file, "Timings file");
+        final TestTimings testTimings = new TestTimings(file);
+        if (file.isFile()) {
+            try {
+                final BufferedReader in = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(file), ENCODING));
+                try {
+                    String line = in.readLine();
+                    while (line != null) {
+                        final int tab = line.indexOf('\t');
+                        if (tab > 0) {
+                            try {
+                                final long millis = Long.parseLong(line.substring(0, tab));
+                                testTimings.timings.put(line.substring(tab + 1), millis);
+                            } catch (NumberFormatException e) {
+                                // skip the line, the test will be measured again
+                            }
+                        }
+                        line = in.readLine();
+                    }
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                // unreadable, shards will be balanced by count
+                testTimings.timings.clear();
+            }
+        }
+        return testTimings;
+    }
+
+    /**
+     * Writes the timings, replacing the file atomically.
+     *
+     * @throws IOException if the timings can not be written
+     */
+    void save() throws IOException {
+        final File parent = file.getAbsoluteFile().getParentFile();
+        parent.mkdirs();
+        final File tmp = new File(file.getAbsolutePath() + ".tmp");
+        final Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), ENCODING));
+        try {
+            for (Map.Entry<String, Long> timing : new TreeMap<String, Long>(timings).entrySet()) {
+                out.write(String.valueOf(timing.getValue()));
+                out.write('\t');
+                out.write(timing.getKey());
+                out.write('\n');
+            }
+        } finally {
+            out.close();
+        }
+        file.delete();
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Could not write " + file.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Remembers how long a test file took.
+     *
+     * @param testName the test file relative to the test sources
+     * @param millis the duration
+     */
+    void put(String testName, long millis) {
+        timings.put(testName, Math.max(0, millis));
+    }
+
+    /**
+     * The duration of a test file when it was executed last.
+     *
+     * @param testName the test file relative to the test sources
+     * @return the duration in milliseconds or null if unknown
+     */
+    Long get(String testName) {
+        return timings.get(testName);
+    }
+
+    /**
+     * Expected durations of test files. Unknown test files are estimated by their size,
+     * with the milliseconds per byte of the known ones, but not longer than the longest
+     * known one.
+     *
+     * @param sizes the sizes of the test files by their name relative to the test sources
+     * @return the expected durations in milliseconds by test file
+     */
+    Map<String, Long> estimate(Map<String, Long> sizes) {
+        long knownMillis = 0;
+        long knownBytes = 0;
+        long longest = Long.MAX_VALUE;
+        for (Map.Entry<String, Long> size : sizes.entrySet()) {
+            final Long millis = timings.get(size.getKey());
+            if (millis != null) {
+                knownMillis += millis;
+                knownBytes += size.getValue();
+                longest = longest == Long.MAX_VALUE ? millis : Math.max(longest, millis);
+            }
+        }
+        final double millisPerByte = knownMillis > 0 && knownBytes > 0
+            ? (double) knownMillis / knownBytes
+            : DEFAULT_MILLIS_PER_BYTE;
+
+        final Map<String, Long> expected = Maps.newHashMap();
+        for (Map.Entry<String, Long> size : sizes.entrySet()) {
+            final Long millis = timings.get(size.getKey());
+            expected.put(size.getKey(), millis != null
+                ? millis
+                : Math.max(1, Math.min(longest, Math.round(size.getValue() * millisPerByte))));
+        }
+        return expected;
+    }
+
+    /**
+     * Orders test files by descending expected duration, equal ones by name.
+     *
+     * @param expected the expected durations by test file
+     * @return the test files, the longest first
+     */
+    static List<String> longestFirst(final Map<String, Long> expected) {
+        final List<String> sorted = Lists.newArrayList(expected.keySet());
+        Collections.sort(sorted, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                final long durationA = expected.get(a);
+                final long durationB = expected.get(b);
+                if (durationA != durationB) {
+                    return durationA > durationB ? -1 : 1;
+                }
+                return a.compareTo(b);
+            }
+        });
+        return sorted;
+    }
+
+    /**
+     * Splits test files into shards of about the same expected duration. The longest test
+     * files are assigned first, each to the shard with the least expected duration so far,
+     * so every shard lists its test files longest first. The result only depends on the
+     * expected durations.
+     *
+     * @param expected the expected durations by test file
+     * @param shardCount the number of shards
+     * @return the test files of each shard
+     */
+    static List<List<String>> partition(Map<String, Long> expected, int shardCount) {
+        Preconditions.checkArgument(shardCount > 0, "Shard count");
+        final List<List<String>> shards = Lists.newArrayList();
+        final long[] durations = new long[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards.add(Lists.<String>newArrayList());
+        }
+        for (String testName : longestFirst(expected)) {
+            final int shortest = shortest(durations);
+            shards.get(shortest).add(testName);
+            durations[shortest] += expected.get(testName);
+        }
+        return shards;
+    }
+
+    /**
+     * How long it takes to execute test files in the given order if each one is started as
+     * soon as one of the processes is free.
+     *
+     * @param order the test files in the order they are started
+     * @param expected the expected durations by test file
+     * @param processes how many test files are executed in parallel
+     * @return the expected duration of all test files in milliseconds
+     */
+    static long criticalPath(List<String> order, Map<String, Long> expected, int processes) {
+        Preconditions.checkArgument(processes > 0, "Processes");
+        final long[] durations = new long[processes];
+        for (String testName : order) {
+            durations[shortest(durations)] += expected.get(testName);
+        }
+        long longest = 0;
+        for (long duration : durations) {
+            longest = Math.max(longest, duration);
+        }
+        return longest;
+    }
+
+    private static int shortest(long[] durations) {
+        int shortest = 0;
+        for (int i = 1; i < durations.length; i++) {
+            if (durations[i] < durations[shortest]) {
+                shortest = i;
+            }
+        }
+        return shortest;
+    }
+}
@@ -0,0 +1,276 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.phpmaven.plugin.build;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Remembers which jars were unpacked into a directory and which files each of them
+ * contributed, so unchanged jars do not have to be opened again.
+ *
+ * @author Tobias Sarnowski
+ */
+final class UnpackManifest {
+
+    /**
+     * Name of the manifest within the unpacked directory.
+     */
+    static final String FILE_NAME = ".php-maven-unpack";
+
+    private static final int MAGIC = 0x50484d55;
+    private static final int VERSION = 1;
+
+    private final List<Jar> jars;
+
+    /**
+     * Creates a manifest.
+     *
+     * @param jars the unpacked jars in classpath order
+     */
+    UnpackManifest(List<Jar> jars) {
+        this.jars = ImmutableList.copyOf(jars);
+    }
+
+    /**
+     * Reads the manifest of a directory.
+     *
+     * @param directory the unpacked directory
+     * @return the manifest or an empty manifest if there is none or it can not be read
+     */
+    static UnpackManifest load(File directory) {
+        final File file = new File(directory, FILE_NAME);
+        if (!file.isFile()) {
+            return new UnpackManifest(Collections.<Jar>emptyList());
+        }
+        try {
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    return new UnpackManifest(Collections.<Jar>emptyList());
+                }
+                final List<Jar> jars = Lists.newArrayList();
+                final int jarCount = in.readInt();
+                for (int i = 0; i < jarCount; i++) {
+                    final String path = in.readUTF();
+                    final long size = in.readLong();
+                    final long lastModified = in.readLong();
+                    final String sha1 = in.readUTF();
+                    final int fileCount = in.readInt();
+                    final List<String> files = Lists.newArrayListWithCapacity(fileCount);
+                    for (int j = 0; j < fileCount; j++) {
+                        files.add(in.readUTF());
+                    }
+                    jars.add(new Jar(path, size, lastModified, sha1, files));
+                }
+                return new UnpackManifest(jars);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // corrupt, everything will be checked again
+            return new UnpackManifest(Collections.<Jar>emptyList());
+        }
+    }
+
+    /**
+     * Writes the manifest into the directory.
+     *
+     * @param directory the unpacked directory
+     * @throws IOException if the manifest can not be written
+     */
+    void save(File directory) throws IOException {
+        final File file = new File(directory, FILE_NAME);
+        final File tmp = new File(directory, FILE_NAME + ".tmp");
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(jars.size());
+            for (Jar jar : jars) {
+                out.writeUTF(jar.getPath());
+                out.writeLong(jar.getSize());
+                out.writeLong(jar.getLastModified());
+                out.writeUTF(jar.getSha1());
+                out.writeInt(jar.getFiles().size());
+                for (String name : jar.getFiles()) {
+                    out.writeUTF(name);
+                }
+            }
+        } finally {
+            out.close();
+        }
+        file.delete();
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Failed to write unpack manifest " + file.getAbsolutePath());
+        }
+    }
+
+    /**
+     * The unpacked jars.
+     *
+     * @return the jars in classpath order
+     */
+    List<Jar> getJars() {
+        return jars;
+    }
+
+    /**
+     * Looks up a jar by its path.
+     *
+     * @param path absolute path of the jar
+     * @return the jar or null
+     */
+    Jar getJar(String path) {
+        for (Jar jar : jars) {
+            if (jar.getPath().equals(path)) {
+                return jar;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Checks if the same jars with the same content are unpacked in the same order.
+     *
+     * @param current the jars to unpack
+     * @return if nothing has to be unpacked
+     */
+    boolean isUpToDate(List<Jar> current) {
+        if (current.size() != jars.size()) {
+            return false;
+        }
+        for (int i = 0; i < jars.size(); i++) {
+            if (!jars.get(i).isSameContent(current.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Fingerprints a jar. The checksum of the previous fingerprint is reused if size and
+     * modification time did not change.
+     *
+     * @param file the jar
+     * @param previous the fingerprint of the last unpacking or null
+     * @return the fingerprint without files
+     * @throws IOException if the jar can not be read
+     */
+    static Jar fingerprint(File file, Jar previous) throws IOException {
+        final String path = file.getAbsolutePath();
+        final long size = file.length();
+        final long lastModified = file.lastModified();
+        if (previous != null && previous.getSize() == size && previous.getLastModified() == lastModified) {
+            return new Jar(path, size, lastModified, previous.getSha1(), Collections.<String>emptyList());
+        }
+        return new Jar(path, size, lastModified, sha1(file), Collections.<String>emptyList());
+    }
+
+    private static String sha1(File file) throws IOException {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 not available", e);
+        }
+        final InputStream in = new FileInputStream(file);
+        try {
+            final byte[] buffer = new byte[65536];
+            int read = in.read(buffer);
+            while (read != -1) {
+                digest.update(buffer, 0, read);
+                read = in.read(buffer);
+            }
+        } finally {
+            in.close();
+        }
+        final StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(Integer.toHexString((b & 0xff) | 0x100).substring(1));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * An unpacked jar.
+     */
+    static final class Jar {
+        private final String path;
+        private final long size;
+        private final long lastModified;
+        private final String sha1;
+        private final List<String> files;
+
+        Jar(String path, long size, long lastModified, String sha1, List<String> files) {
+            Preconditions.checkNotNull(path, "Path");
+            Preconditions.checkNotNull(sha1, "SHA-1");
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.sha1 = sha1;
+            this.files = ImmutableList.copyOf(files);
+        }
+
+        /**
+         * The same jar with the files it contributed.
+         *
+         * @param contributed the unpacked files, relative to the directory
+         * @return the new jar
+         */
+        Jar withFiles(List<String> contributed) {
+            return new Jar(path, size, lastModified, sha1, contributed);
+        }
+
+        boolean isSameContent(Jar other) {
+            return other != null && path.equals(other.path) && sha1.equals(other.sha1);
+        }
+
+        String getPath() {
+            return path;
+        }
+
+        long getSize() {
+            return size;
+        }
+
+        long getLastModified() {
+            return lastModified;
+        }
+
+        String getSha1() {
+            return sha1;
+        }
+
+        List<String> getFiles() {
+            return files;
+        }
+    }
+}
@@ -0,0 +1,213 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.phpmaven.plugin.build;
+
+import com.google.common.base.Preconditions;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Remembers which files were validated without errors. A file is identified by a
+ * hash of its content, the include path it was validated with and the configuration
+ * of the whole validation. The cache is stored as a single binary index file.
+ *
+ * @author Tobias Sarnowski
+ */
+final class ValidationCache {
+
+    private static final int MAGIC = 0x50484d56;
+    private static final int VERSION = 1;
+    private static final int BUFFER_SIZE = 8192;
+
+    private final File indexFile;
+    private final String configuration;
+    private final Map<String, byte[]> previous = new ConcurrentHashMap<String, byte[]>();
+    private final Map<String, byte[]> current = new ConcurrentHashMap<String, byte[]>();
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+    private boolean loaded;
+
+    /**
+     * Creates a cache; the index is read on first use.
+     *
+     * @param indexFile where the cache is stored
+     * @param configuration everything besides the file which influences the validation result
+     */
+    ValidationCache(File indexFile, String configuration) {
+        Preconditions.checkNotNull(indexFile, "Index file");
+        Preconditions.checkNotNull(configuration, "Configuration");
+        this.indexFile = indexFile;
+        this.configuration = hex(newDigest().digest(configuration.getBytes()));
+    }
+
+    /**
+     * Calculates the fingerprint of a file.
+     *
+     * @param file the file to validate
+     * @param context additional information which influences the result, like the include path
+     * @return the fingerprint
+     * @throws IOException if the file can not be read
+     */
+    byte[] fingerprint(File file, String context) throws IOException {
+        final MessageDigest digest = newDigest();
+        digest.update(context.getBytes("UTF-8"));
+        digest.update((byte) 0);
+
+        final InputStream in = new FileInputStream(file);
+        try {
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            int read = in.read(buffer);
+            while (read != -1) {
+                digest.update(buffer, 0, read);
+                read = in.read(buffer);
+            }
+        } finally {
+            in.close();
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Checks if the file was validated successfully with the same fingerprint before.
+     * Counts hits and misses.
+     *
+     * @param file the file to validate
+     * @param fingerprint the current fingerprint of the file
+     * @return if the validation can be skipped
+     */
+    boolean isClean(File file, byte[] fingerprint) {
+        ensureLoaded();
+        final String key = file.getAbsolutePath();
+        if (Arrays.equals(previous.get(key), fingerprint)) {
+            current.put(key, fingerprint);
+            hits.incrementAndGet();
+            return true;
+        }
+        misses.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Remembers a successful validation.
+     *
+     * @param file the validated file
+     * @param fingerprint the fingerprint the file was validated with
+     */
+    void markClean(File file, byte[] fingerprint) {
+        current.put(file.getAbsolutePath(), fingerprint);
+    }
+
+    int getHits() {
+        return hits.get();
+    }
+
+    int getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Writes all clean files seen during this run to the index. Files which were
+     * not seen (deleted or failed) are dropped.
+     *
+     * @throws IOException if the index can not be written
+     */
+    void save() throws IOException {
+        indexFile.getParentFile().mkdirs();
+        final File tempFile = new File(indexFile.getAbsolutePath() + ".tmp");
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(configuration);
+            out.writeInt(current.size());
+            for (Map.Entry<String, byte[]> entry : current.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeShort(entry.getValue().length);
+                out.write(entry.getValue());
+            }
+        } finally {
+            out.close();
+        }
+        indexFile.delete();
+        if (!tempFile.renameTo(indexFile)) {
+            throw new IOException("Could not write " + indexFile.getAbsolutePath());
+        }
+    }
+
+    private synchronized void ensureLoaded() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        try {
+            load();
+        } catch (FileNotFoundException e) {
+            // first run
+            previous.clear();
+        } catch (IOException e) {
+            // corrupt or from another version, start over
+            previous.clear();
+        }
+    }
+
+    private void load() throws IOException {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || !configuration.equals(in.readUTF())) {
+                return;
+            }
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                final String key = in.readUTF();
+                final byte[] fingerprint = new byte[in.readShort()];
+                in.readFully(fingerprint);
+                previous.put(key, fingerprint);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        final StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(Integer.toHexString((b & 0xff) | 0x100).substring(1));
+        }
+        return hex.toString();
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 not supported", e);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+<?php
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Test runner used by the maven-php-plugin to execute many test files with one
+ * PHP process, PHPUnit and the bootstrap are only loaded once.
+ *
+ * Usage: php MavenSuite.php <listfile>
+ *
+ * The list file contains one test file per line:
+ *   <test file>\t<result file>
+ * The test case class of every test file is executed on its own and its
+ * results are written to the result file, like Maven.php does for a single
+ * test file. Test files without a result file afterwards (e.g. because the
+ * test case class was already declared or PHP died) are executed with
+ * Maven.php by the plugin.
+ */
+
+require_once 'PHPUnit/TextUI/TestRunner.php';
+require_once 'PHPUnit/Util/Filter.php';
+PHPUnit_Util_Filter::addFileToFilter(__FILE__, 'PHPUNIT');
+
+$tests = file($_SERVER['argv'][1], FILE_IGNORE_NEW_LINES | FILE_SKIP_EMPTY_LINES);
+$includePath = get_include_path();
+$runner = new PHPUnit_TextUI_TestRunner;
+
+foreach ($tests as $test) {
+    list($testFile, $targetFile) = explode("\t", $test, 2);
+
+    // like Maven.php, the directory of the test file comes last
+    set_include_path($includePath . PATH_SEPARATOR . dirname($testFile));
+
+    $declared = get_declared_classes();
+    require_once($testFile);
+    $testClass = null;
+    foreach (array_diff(get_declared_classes(), $declared) as $class) {
+        if (strtolower(substr($class, -4, 4)) == 'test') {
+            $testClass = $class;
+        }
+    }
+    if ($testClass === null) {
+        continue;
+    }
+
+    $arguments = array();
+    $arguments['test'] = $testClass;
+    $arguments['testFile'] = $testFile;
+    $arguments['xmlLogfile'] = $targetFile;
+    $arguments['syntaxCheck'] = null;
+
+    try {
+        $runner->doRun(
+          $runner->getTest(
+            $arguments['test'],
+            $arguments['testFile'],
+            $arguments['syntaxCheck']
+          ),
+          $arguments
+        );
+    }
+
+    catch (Exception $e) {
+        // no result file, the plugin executes it on its own
+        @unlink($targetFile);
+    }
+}
+
+// the results are reported by the result files
+exit(PHPUnit_TextUI_TestRunner::SUCCESS_EXIT);
+
+?>
@@ -0,0 +1,74 @@
+<?php
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Syntax check driver used by the maven-php-plugin to check many files with
+ * one PHP process.
+ *
+ * Usage: php [-d opcache.enable_cli=1] PhpLint.php <listfile>
+ *
+ * The list file contains one path per line. For every path a line
+ *   #PHPMAVEN-LINT <path>
+ * is printed, followed by the errors found in that file.
+ *
+ * The files are never executed. If OPcache is enabled, they are compiled like
+ * "php -l" does, which also finds compile errors like a function declared twice
+ * in a file or "break" outside of a loop. A fatal compile error may end the
+ * process, the files after it have to be checked by another one. Without OPcache
+ * the files are only parsed, which finds syntax errors but no compile errors.
+ *
+ * Needs PHP 7 or newer, older versions can not check a file without executing
+ * it in the same process.
+ */
+
+define('PHPMAVEN_LINT', '#PHPMAVEN-LINT');
+
+if (!defined('TOKEN_PARSE')) {
+    fwrite(STDERR, 'The syntax check needs PHP 7 or newer, found PHP ' . PHP_VERSION . "\n");
+    exit(1);
+}
+
+// only errors count, like the return code of "php -l"
+ini_set('display_errors', '1');
+ini_set('html_errors', '0');
+ini_set('log_errors', '0');
+error_reporting(E_ERROR | E_PARSE | E_CORE_ERROR | E_COMPILE_ERROR);
+
+$paths = file($_SERVER['argv'][1], FILE_IGNORE_NEW_LINES | FILE_SKIP_EMPTY_LINES);
+$compile = function_exists('opcache_compile_file') && ini_get('opcache.enable_cli');
+
+foreach ($paths as $path) {
+    echo PHPMAVEN_LINT . ' ' . $path . "\n";
+
+    $code = @file_get_contents($path);
+    if ($code === false) {
+        echo 'Error: Could not read ' . $path . "\n";
+        continue;
+    }
+
+    try {
+        if ($compile) {
+            // compile errors are displayed by PHP itself
+            opcache_compile_file($path);
+        } else {
+            token_get_all($code, TOKEN_PARSE);
+        }
+    } catch (ParseError $e) {
+        echo 'Parse error: ' . $e->getMessage() . ' in ' . $path . ' on line ' . $e->getLine() . "\n";
+    } catch (Throwable $e) {
+        // e.g. a CompileError, must not abort the rest of the batch
+        echo 'Fatal error: ' . $e->getMessage() . ' in ' . $path . ' on line ' . $e->getLine() . "\n";
+    }
+}
@@ -0,0 +1,97 @@
+<?php
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Long running PHP worker used by the maven-php-plugin to execute many files
+ * in one PHP process.
+ *
+ * Requests are read from STDIN, one per line:
+ *   <file>\t<include_path>
+ * An empty line (or the end of STDIN) stops the worker.
+ *
+ * Every request is answered on STDOUT with a frame:
+ *   #PHPMAVEN-FRAME <status> <length>\n<output>
+ * where status is "ok" if the file was executed completely or "exit" if the
+ * file terminated the worker (exit() or a fatal error).
+ *
+ * Files are executed with include_once at global scope, like a file executed by
+ * its own PHP process: their top-level variables are globals. A file which was
+ * already loaded by an earlier file of this worker (e.g. through require_once) is
+ * not executed again, that would redeclare its classes and functions. Its request
+ * is answered with an empty "ok" frame. The globals of earlier files are kept, as
+ * the functions of the files they loaded may still use them.
+ *
+ * The variables of the worker itself start with "phpmaven", so executed files
+ * do not overwrite them by accident.
+ */
+
+define('PHPMAVEN_FRAME', '#PHPMAVEN-FRAME');
+define('PHPMAVEN_OB_LEVEL', ob_get_level());
+
+$phpmavenBusy = false;
+
+function phpmaven_frame($status, $output)
+{
+    fwrite(STDOUT, PHPMAVEN_FRAME . ' ' . $status . ' ' . strlen($output) . "\n" . $output);
+    fflush(STDOUT);
+}
+
+function phpmaven_collect()
+{
+    $output = '';
+    while (ob_get_level() > PHPMAVEN_OB_LEVEL) {
+        $output = ob_get_clean() . $output;
+    }
+    return $output;
+}
+
+function phpmaven_shutdown()
+{
+    global $phpmavenBusy;
+    if (!$phpmavenBusy) {
+        return;
+    }
+    $output = phpmaven_collect();
+
+    // make sure fatal errors are reported even if they were not displayed
+    $error = error_get_last();
+    $fatal = E_ERROR | E_PARSE | E_CORE_ERROR | E_COMPILE_ERROR | E_USER_ERROR;
+    if ($error !== null && ($error['type'] & $fatal) && strpos($output, $error['message']) === false) {
+        $output .= "\nFatal error: " . $error['message']
+            . ' in ' . $error['file'] . ' on line ' . $error['line'] . "\n";
+    }
+    phpmaven_frame('exit', $output);
+}
+
+register_shutdown_function('phpmaven_shutdown');
+
+while (($phpmavenRequest = fgets(STDIN)) !== false) {
+    $phpmavenRequest = rtrim($phpmavenRequest, "\r\n");
+    if ($phpmavenRequest === '') {
+        break;
+    }
+    $phpmavenParts = explode("\t", $phpmavenRequest, 2);
+    if (count($phpmavenParts) == 2) {
+        set_include_path($phpmavenParts[1]);
+    }
+
+    $phpmavenBusy = true;
+    ob_start();
+    // global scope, files loaded by earlier files already ran in this worker
+    include_once $phpmavenParts[0];
+    $phpmavenBusy = false;
+
+    phpmaven_frame('ok', phpmaven_collect());
+}
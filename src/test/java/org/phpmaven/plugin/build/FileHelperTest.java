@@ -0,0 +1,224 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.phpmaven.plugin.build;
+
+import com.google.common.collect.Lists;
+import junit.framework.TestCase;
+import org.codehaus.plexus.util.FileUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Copies of {@link FileHelper#copyFile(File, File)} have to be the same as stream copies.
+ * <p/>
+ * With -Dphpmaven.benchmark=true the copies of {@link FileHelper#copyToFolder(File, File, File, boolean)}
+ * are compared with {@link FileUtils#copyFileIfModified(File, File)} of plexus on a generated tree
+ * of 10000 files, first into an empty and then into an up to date target directory.
+ *
+ * @author Tobias Sarnowski
+ */
+public class FileHelperTest extends TestCase {
+
+    /**
+     * Larger than the 8 MB the JDK transfers at once if it can not copy within the kernel,
+     * so the copy needs several transfers.
+     */
+    private static final int LARGE_FILE_SIZE = 9 * 1024 * 1024 + 17;
+
+    /**
+     * A modification time every file system can store.
+     */
+    private static final long MODIFIED = 1262304000000L;
+
+    private static final String BENCHMARK_PROPERTY = "phpmaven.benchmark";
+    private static final int BENCHMARK_DIRECTORIES = 100;
+    private static final int BENCHMARK_FILES_PER_DIRECTORY = 100;
+    private static final int BENCHMARK_FILE_SIZE = 4096;
+    private static final int BENCHMARK_ROUNDS = 3;
+
+    private File directory;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = File.createTempFile("filehelper", "");
+        directory.delete();
+        directory.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtils.deleteDirectory(directory);
+    }
+
+    public void testCopiesLargeFileLikeStreamCopy() throws IOException {
+        final File source = createFile("large.php", LARGE_FILE_SIZE);
+        final File copy = new File(directory, "copy/large.php");
+        final File streamCopy = new File(directory, "stream/large.php");
+
+        FileHelper.copyFile(source, copy);
+        streamCopy(source, streamCopy);
+
+        final byte[] expected = read(source);
+        assertEquals(LARGE_FILE_SIZE, copy.length());
+        assertTrue(Arrays.equals(expected, read(copy)));
+        assertTrue(Arrays.equals(read(streamCopy), read(copy)));
+    }
+
+    public void testCopiesEmptyFile() throws IOException {
+        final File source = createFile("empty.php", 0);
+        final File copy = new File(directory, "copy/empty.php");
+
+        FileHelper.copyFile(source, copy);
+
+        assertTrue(copy.isFile());
+        assertEquals(0, copy.length());
+    }
+
+    public void testReplacesLongerFile() throws IOException {
+        final File source = createFile("short.php", 100);
+        final File copy = new File(directory, "copy/short.php");
+        FileHelper.copyFile(createFile("long.php", 1000), copy);
+
+        FileHelper.copyFile(source, copy);
+
+        assertTrue(Arrays.equals(read(source), read(copy)));
+    }
+
+    public void testKeepsModificationTime() throws IOException {
+        final File source = createFile("old.php", 1000);
+        assertTrue(source.setLastModified(MODIFIED));
+        final File copy = new File(directory, "copy/old.php");
+
+        FileHelper.copyFile(source, copy);
+
+        assertEquals(MODIFIED, copy.lastModified());
+    }
+
+    public void testBenchmarkCopyToFolder() throws IOException {
+        if (!Boolean.getBoolean(BENCHMARK_PROPERTY)) {
+            return;
+        }
+        final File sources = new File(directory, "src");
+        final List<File> files = Lists.newArrayList();
+        for (int i = 0; i < BENCHMARK_DIRECTORIES; i++) {
+            for (int j = 0; j < BENCHMARK_FILES_PER_DIRECTORY; j++) {
+                files.add(createFile("src/package" + i + "/Class" + j + ".php", BENCHMARK_FILE_SIZE));
+            }
+        }
+
+        long plexusCopy = Long.MAX_VALUE;
+        long plexusUpToDate = Long.MAX_VALUE;
+        long helperCopy = Long.MAX_VALUE;
+        long helperUpToDate = Long.MAX_VALUE;
+        for (int round = 0; round < BENCHMARK_ROUNDS; round++) {
+            final File plexusTarget = new File(directory, "plexus" + round);
+            plexusCopy = Math.min(plexusCopy, copyWithPlexus(sources, plexusTarget, files));
+            plexusUpToDate = Math.min(plexusUpToDate, copyWithPlexus(sources, plexusTarget, files));
+
+            final File helperTarget = new File(directory, "helper" + round);
+            helperCopy = Math.min(helperCopy, copyWithHelper(sources, helperTarget, files));
+            helperUpToDate = Math.min(helperUpToDate, copyWithHelper(sources, helperTarget, files));
+
+            final File last = files.get(files.size() - 1);
+            final String path = last.getAbsolutePath().substring(sources.getAbsolutePath().length());
+            assertTrue(Arrays.equals(read(last), read(new File(helperTarget, path))));
+            assertTrue(Arrays.equals(read(last), read(new File(plexusTarget, path))));
+        }
+
+        System.out.println("Copying " + files.size() + " files of " + BENCHMARK_FILE_SIZE + " bytes, best of "
+            + BENCHMARK_ROUNDS + " rounds:");
+        System.out.println("  FileUtils.copyFileIfModified: " + plexusCopy + " ms into an empty directory, "
+            + plexusUpToDate + " ms up to date");
+        System.out.println("  FileHelper.copyToFolder:      " + helperCopy + " ms into an empty directory, "
+            + helperUpToDate + " ms up to date");
+    }
+
+    private static long copyWithPlexus(File sources, File target, List<File> files) throws IOException {
+        final int prefix = sources.getAbsolutePath().length();
+        final long start = System.nanoTime();
+        for (File file : files) {
+            FileUtils.copyFileIfModified(file, new File(target, file.getAbsolutePath().substring(prefix)));
+        }
+        return (System.nanoTime() - start) / 1000000;
+    }
+
+    private static long copyWithHelper(File sources, File target, List<File> files) throws IOException {
+        final long start = System.nanoTime();
+        for (File file : files) {
+            FileHelper.copyToFolder(sources, target, file, false);
+        }
+        return (System.nanoTime() - start) / 1000000;
+    }
+
+    private File createFile(String name, int size) throws IOException {
+        final byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        final File file = new File(directory, name);
+        file.getParentFile().mkdirs();
+        final OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static void streamCopy(File source, File target) throws IOException {
+        target.getParentFile().mkdirs();
+        final InputStream in = new FileInputStream(source);
+        try {
+            final OutputStream out = new FileOutputStream(target);
+            try {
+                final byte[] buffer = new byte[4096];
+                int read = in.read(buffer);
+                while (read >= 0) {
+                    out.write(buffer, 0, read);
+                    read = in.read(buffer);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] read(File file) throws IOException {
+        final byte[] content = new byte[(int) file.length()];
+        final InputStream in = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < content.length) {
+                final int read = in.read(content, offset, content.length - offset);
+                if (read < 0) {
+                    throw new IOException("Truncated " + file.getPath());
+                }
+                offset += read;
+            }
+        } finally {
+            in.close();
+        }
+        return content;
+    }
+}
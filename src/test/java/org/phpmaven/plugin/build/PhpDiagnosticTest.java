@@ -0,0 +1,171 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.phpmaven.plugin.build;
+
+import junit.framework.TestCase;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Classification and parsing of PHP output lines, which has to match the former check
+ * for lines starting with an identifier and a colon, optionally in bold.
+ *
+ * @author Tobias Sarnowski
+ */
+public class PhpDiagnosticTest extends TestCase {
+
+    /**
+     * Lines as the consumers see them, every kind once.
+     */
+    private static final String[] LINES = {
+        "Fatal error: Call to undefined function foo() in /src/a.php on line 3",
+        "<b>Warning</b>: Division by zero in <b>/src/a.php</b> on line <b>12</b>",
+        "Fatal error: require_once(): Failed opening required 'b.php' in /src/a.php on line 2",
+        "Warning: include_once(b.php): failed to open stream in /src/a.php on line 2",
+        "PHPUnit 3.4.15 by Sebastian Bergmann.",
+        "",
+    };
+
+    private static final int ROUNDS = 100000;
+
+    public void testClassifiesErrors() {
+        assertEquals(PhpDiagnostic.Kind.ERROR,
+            PhpDiagnostic.classify("Fatal error: Call to undefined function foo() in /src/a.php on line 3"));
+        assertEquals(PhpDiagnostic.Kind.ERROR,
+            PhpDiagnostic.classify("Parse error: syntax error, unexpected '}' in /src/a.php on line 7"));
+        assertEquals(PhpDiagnostic.Kind.ERROR, PhpDiagnostic.classify("Error: something failed"));
+    }
+
+    public void testClassifiesWarnings() {
+        assertEquals(PhpDiagnostic.Kind.WARNING,
+            PhpDiagnostic.classify("Warning: Division by zero in /src/a.php on line 12"));
+        assertEquals(PhpDiagnostic.Kind.WARNING,
+            PhpDiagnostic.classify("Notice: Undefined variable: x in /src/a.php on line 4"));
+    }
+
+    public void testClassifiesBoldAndIndentedLines() {
+        assertEquals(PhpDiagnostic.Kind.ERROR,
+            PhpDiagnostic.classify("<b>Fatal error</b>:  Cannot redeclare foo() in <b>/src/a.php</b>"
+                + " on line <b>2</b>"));
+        assertEquals(PhpDiagnostic.Kind.WARNING,
+            PhpDiagnostic.classify("  \t<b>Warning</b>: Division by zero in <b>/src/a.php</b> on line <b>12</b>"));
+        assertEquals(PhpDiagnostic.Kind.WARNING, PhpDiagnostic.classify("\tNotice: Undefined index: a"));
+    }
+
+    public void testClassifiesFailedIncludes() {
+        assertEquals(PhpDiagnostic.Kind.INCLUDE_ERROR,
+            PhpDiagnostic.classify("Fatal error: require_once(): Failed opening required 'b.php' in /src/a.php"
+                + " on line 2"));
+        assertEquals(PhpDiagnostic.Kind.INCLUDE_WARNING,
+            PhpDiagnostic.classify("Warning: include_once(b.php): failed to open stream in /src/a.php on line 2"));
+        assertTrue(PhpDiagnostic.Kind.INCLUDE_ERROR.isError());
+        assertTrue(PhpDiagnostic.Kind.INCLUDE_ERROR.isInclude());
+        assertTrue(PhpDiagnostic.Kind.INCLUDE_WARNING.isWarning());
+        assertFalse(PhpDiagnostic.Kind.WARNING.isInclude());
+        assertFalse(PhpDiagnostic.Kind.NONE.isError());
+        assertFalse(PhpDiagnostic.Kind.NONE.isWarning());
+    }
+
+    public void testIgnoresOtherLines() {
+        assertEquals(PhpDiagnostic.Kind.NONE, PhpDiagnostic.classify(""));
+        assertEquals(PhpDiagnostic.Kind.NONE, PhpDiagnostic.classify("   "));
+        assertEquals(PhpDiagnostic.Kind.NONE, PhpDiagnostic.classify("<b>"));
+        assertEquals(PhpDiagnostic.Kind.NONE, PhpDiagnostic.classify("Everything fine"));
+        assertEquals(PhpDiagnostic.Kind.NONE, PhpDiagnostic.classify("Errors: 3"));
+        assertEquals(PhpDiagnostic.Kind.NONE, PhpDiagnostic.classify("Fatal error"));
+        assertEquals(PhpDiagnostic.Kind.NONE, PhpDiagnostic.classify("Fatal error : spaced"));
+        assertEquals(PhpDiagnostic.Kind.NONE, PhpDiagnostic.classify("<b>Warning:</b> colon inside"));
+        assertEquals(PhpDiagnostic.Kind.NONE, PhpDiagnostic.classify("Tests: 1, Warnings: 2"));
+        // the log format of the CLI never counted, only the display format
+        assertEquals(PhpDiagnostic.Kind.NONE,
+            PhpDiagnostic.classify("PHP Fatal error: Call to undefined function foo() in /src/a.php on line 3"));
+    }
+
+    public void testParsesLocation() {
+        final PhpDiagnostic diagnostic =
+            PhpDiagnostic.parse("Warning: Division by zero in /src/my file.php on line 12");
+        assertEquals(PhpDiagnostic.Severity.WARNING, diagnostic.getSeverity());
+        assertEquals("Division by zero", diagnostic.getMessage());
+        assertEquals("/src/my file.php", diagnostic.getFile());
+        assertEquals(12, diagnostic.getLine());
+        assertEquals("Warning: Division by zero in /src/my file.php on line 12", diagnostic.toString());
+    }
+
+    public void testParsesBoldLines() {
+        final PhpDiagnostic diagnostic =
+            PhpDiagnostic.parse("<b>Parse error</b>:  syntax error in <b>/src/a.php</b> on line <b>7</b><br />");
+        assertEquals(PhpDiagnostic.Severity.ERROR, diagnostic.getSeverity());
+        assertEquals("syntax error", diagnostic.getMessage());
+        assertEquals("/src/a.php", diagnostic.getFile());
+        assertEquals(7, diagnostic.getLine());
+    }
+
+    public void testParsesLinesWithoutLocation() {
+        final PhpDiagnostic diagnostic = PhpDiagnostic.parse("Error: something: failed");
+        assertEquals(PhpDiagnostic.Severity.ERROR, diagnostic.getSeverity());
+        assertEquals("something: failed", diagnostic.getMessage());
+        assertNull(diagnostic.getFile());
+        assertEquals(0, diagnostic.getLine());
+        assertEquals("Error: something: failed", diagnostic.toString());
+    }
+
+    public void testParsesHugeLineNumbers() {
+        final PhpDiagnostic diagnostic =
+            PhpDiagnostic.parse("Warning: Division by zero in /src/a.php on line 99999999999999999999");
+        assertEquals("Division by zero", diagnostic.getMessage());
+        assertEquals("/src/a.php", diagnostic.getFile());
+        assertEquals(0, diagnostic.getLine());
+    }
+
+    public void testClassifiesWithoutAllocating() {
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return;
+        }
+        final com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        if (!allocations.isThreadAllocatedMemorySupported() || !allocations.isThreadAllocatedMemoryEnabled()) {
+            return;
+        }
+        final long thread = Thread.currentThread().getId();
+
+        // warm up, so neither class loading nor compilation is measured
+        assertEquals(4 * ROUNDS, classifyAll());
+        final long before = allocations.getThreadAllocatedBytes(thread);
+        final int errors = classifyAll();
+        final long allocated = allocations.getThreadAllocatedBytes(thread) - before;
+
+        assertEquals(4 * ROUNDS, errors);
+        // below one byte per line, so no line allocated an object
+        assertTrue(allocated + " bytes allocated", allocated < ROUNDS * LINES.length);
+    }
+
+    private static int classifyAll() {
+        int errors = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            for (String line : LINES) {
+                if (PhpDiagnostic.classify(line) != PhpDiagnostic.Kind.NONE) {
+                    errors++;
+                }
+            }
+        }
+        return errors;
+    }
+
+    public void testParsesNothingElse() {
+        assertNull(PhpDiagnostic.parse("Everything fine"));
+        assertNull(PhpDiagnostic.parse("PHP Warning: Division by zero in /src/a.php on line 12"));
+    }
+}
@@ -0,0 +1,195 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.phpmaven.plugin.build;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import junit.framework.TestCase;
+import org.codehaus.plexus.util.FileUtils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The lint script has to reject the files "php -l" rejects. Without opcache it only parses the
+ * files and accepts compile errors. Needs PHP 7 or newer as "php" on the path, the tests pass
+ * without doing anything otherwise.
+ *
+ * @author Tobias Sarnowski
+ */
+public class PhpLintTest extends TestCase {
+
+    private static final String PHP = "php";
+
+    private static final String MARKER = "#PHPMAVEN-LINT ";
+
+    private File directory;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = File.createTempFile("phplint", "");
+        directory.delete();
+        directory.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtils.deleteDirectory(directory);
+    }
+
+    public void testFindsSyntaxErrors() throws Exception {
+        if (!isPhp7Available()) {
+            return;
+        }
+        final File valid = createFile("Valid.php", "<?php\nfunction valid() {\n    return 1;\n}\n");
+        final File sameFunction = createFile("SameFunction.php", "<?php\nfunction valid() {\n    return 2;\n}\n");
+        final File parseError = createFile("ParseError.php", "<?php\nfunction broken( {\n}\n");
+
+        final Map<File, String> errors = lint(false, valid, sameFunction, parseError);
+        assertEquals("", errors.get(valid));
+        // files are checked on their own, not as one program
+        assertEquals("", errors.get(sameFunction));
+        assertTrue(errors.get(parseError).startsWith("Parse error: "));
+        assertFalse(phpLint(valid));
+        assertTrue(phpLint(parseError));
+    }
+
+    public void testFindsCompileErrorsLikePhpLint() throws Exception {
+        if (!isPhp7Available() || !hasOpcache()) {
+            return;
+        }
+        final File[] files = {
+            createFile("Valid.php", "<?php\nfunction valid() {\n    return 1;\n}\n"),
+            createFile("SameFunction.php", "<?php\nfunction valid() {\n    return 2;\n}\n"),
+            createFile("Redeclare.php", "<?php\nfunction twice() {\n}\nfunction twice() {\n}\n"),
+            createFile("Break.php", "<?php\nbreak;\n"),
+            createFile("Read.php", "<?php\n$a = array();\n$b = $a[];\n"),
+            createFile("Parameters.php", "<?php\nfunction same($a, $a) {\n}\n"),
+            createFile("After.php", "<?php\necho 'after';\n"),
+        };
+
+        final Map<File, String> errors = lint(true, files);
+        for (File file : files) {
+            assertEquals(file.getName(), phpLint(file), errors.get(file).length() > 0);
+        }
+    }
+
+    public void testParsesOnlyWithoutOpcache() throws Exception {
+        if (!isPhp7Available()) {
+            return;
+        }
+        final File redeclare = createFile("Redeclare.php", "<?php\nfunction twice() {\n}\nfunction twice() {\n}\n");
+
+        // narrower than "php -l", documented for validationMode lint
+        assertEquals("", lint(false, redeclare).get(redeclare));
+        assertTrue(phpLint(redeclare));
+    }
+
+    private File createFile(String name, String content) throws IOException {
+        final File file = new File(directory, name);
+        FileUtils.fileWrite(file.getAbsolutePath(), content);
+        return file;
+    }
+
+    /**
+     * Checks the files like php:process does, starting another process after a fatal error.
+     */
+    private Map<File, String> lint(boolean opcache, File... files) throws Exception {
+        final File script = new File(directory, "PhpLint.php");
+        FileUtils.copyURLToFile(PhpProcess.class.getResource("PhpLint.php"), script);
+
+        final Map<File, String> errors = Maps.newLinkedHashMap();
+        int start = 0;
+        while (start < files.length) {
+            final StringBuilder list = new StringBuilder();
+            for (int i = start; i < files.length; i++) {
+                list.append(files[i].getAbsolutePath()).append('\n');
+            }
+            final File listFile = new File(directory, "list.txt");
+            FileUtils.fileWrite(listFile.getAbsolutePath(), list.toString());
+
+            final List<String> command = Lists.newArrayList(PHP);
+            if (opcache) {
+                command.add("-d");
+                command.add("opcache.enable_cli=1");
+            }
+            command.add(script.getAbsolutePath());
+            command.add(listFile.getAbsolutePath());
+            final Process process = new ProcessBuilder(command).start();
+
+            File current = null;
+            for (String line : readLines(process)) {
+                if (line.startsWith(MARKER)) {
+                    current = new File(line.substring(MARKER.length()));
+                    errors.put(current, "");
+                } else if (current != null && line.trim().length() > 0) {
+                    errors.put(current, errors.get(current) + line.trim() + "\n");
+                }
+            }
+            if (process.waitFor() == 0) {
+                break;
+            }
+            assertNotNull("no file checked", current);
+            start = Lists.newArrayList(files).indexOf(current) + 1;
+        }
+        return errors;
+    }
+
+    private static boolean phpLint(File file) throws Exception {
+        final Process process = new ProcessBuilder(PHP, "-l", file.getAbsolutePath()).redirectErrorStream(true).start();
+        readLines(process);
+        return process.waitFor() != 0;
+    }
+
+    private static boolean hasOpcache() throws Exception {
+        final Process process = new ProcessBuilder(PHP, "-d", "opcache.enable_cli=1", "-r",
+            "echo function_exists('opcache_compile_file') && ini_get('opcache.enable_cli') ? 'yes' : 'no';").start();
+        final List<String> lines = readLines(process);
+        process.waitFor();
+        return lines.contains("yes");
+    }
+
+    private static List<String> readLines(Process process) throws IOException {
+        final List<String> lines = Lists.newArrayList();
+        final BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream()));
+        try {
+            String line = in.readLine();
+            while (line != null) {
+                lines.add(line);
+                line = in.readLine();
+            }
+        } finally {
+            in.close();
+        }
+        return lines;
+    }
+
+    private static boolean isPhp7Available() throws InterruptedException {
+        try {
+            final Process process = new ProcessBuilder(PHP, "-r", "echo PHP_MAJOR_VERSION;")
+                .redirectErrorStream(true).start();
+            final List<String> lines = readLines(process);
+            return process.waitFor() == 0 && !lines.isEmpty() && Integer.parseInt(lines.get(0).trim()) >= 7;
+        } catch (IOException e) {
+            return false;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.phpmaven.plugin.build;
+
+import junit.framework.TestCase;
+import org.codehaus.plexus.util.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A stored runtime probe is only used as long as the ini files PHP read stay the same.
+ *
+ * @author Tobias Sarnowski
+ */
+public class PhpRuntimeTest extends TestCase {
+
+    /**
+     * A modification time every file system can store.
+     */
+    private static final long MODIFIED = 1262304000000L;
+
+    private File directory;
+    private File configDirectory;
+    private File iniFile;
+    private File scanDirectory;
+    private File scannedFile;
+    private File cacheFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = File.createTempFile("phpruntime", "");
+        directory.delete();
+        directory.mkdirs();
+        configDirectory = new File(directory, "etc");
+        iniFile = createFile("etc/php.ini");
+        scanDirectory = new File(configDirectory, "conf.d");
+        scannedFile = createFile("etc/conf.d/20-opcache.ini");
+        assertTrue(scanDirectory.setLastModified(MODIFIED));
+        assertTrue(configDirectory.setLastModified(MODIFIED));
+        cacheFile = new File(directory, "cache/runtime.properties");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtils.deleteDirectory(directory);
+    }
+
+    public void testLoadsUnchangedProbe() throws Exception {
+        probe().save(cacheFile);
+
+        final PhpRuntime runtime = PhpRuntime.load(cacheFile);
+        assertNotNull("probe not loaded", runtime);
+        assertEquals("7.4.3", runtime.getVersion());
+        assertEquals(iniFile.getAbsolutePath(), runtime.getIniFile());
+        assertTrue(runtime.hasExtension("opcache"));
+    }
+
+    public void testProbesAgainIfIniFileChanged() throws Exception {
+        probe().save(cacheFile);
+        assertTrue(iniFile.setLastModified(MODIFIED + 1000));
+
+        assertNull("probe of changed php.ini loaded", PhpRuntime.load(cacheFile));
+    }
+
+    public void testProbesAgainIfScannedFileChanged() throws Exception {
+        probe().save(cacheFile);
+        assertTrue(scannedFile.setLastModified(MODIFIED + 1000));
+
+        assertNull("probe of changed additional ini file loaded", PhpRuntime.load(cacheFile));
+    }
+
+    public void testProbesAgainIfIniFileAdded() throws Exception {
+        probe().save(cacheFile);
+        createFile("etc/conf.d/30-xdebug.ini");
+        assertTrue(scanDirectory.setLastModified(MODIFIED + 1000));
+
+        assertNull("probe without new additional ini file loaded", PhpRuntime.load(cacheFile));
+    }
+
+    public void testProbesAgainIfStoredWithoutStamp() throws Exception {
+        FileUtils.fileWrite(new File(directory, "old.properties").getAbsolutePath(),
+            "version=7.4.3\nini=\ninclude_path=.\nextensions=core,standard\n");
+
+        assertNull("probe without stamp loaded", PhpRuntime.load(new File(directory, "old.properties")));
+    }
+
+    private PhpRuntime probe() throws PhpCoreException {
+        return PhpRuntime.parse(Arrays.asList(
+            "version=7.4.3",
+            "ini=" + iniFile.getAbsolutePath(),
+            "include_path=.:/usr/share/php",
+            "extensions=core,standard,zend opcache",
+            "scanned=" + scannedFile.getAbsolutePath() + ",",
+            "config_dirs=" + configDirectory.getAbsolutePath() + File.pathSeparator + scanDirectory.getAbsolutePath()
+                + File.pathSeparator));
+    }
+
+    private File createFile(String name) throws IOException {
+        final File file = new File(directory, name);
+        file.getParentFile().mkdirs();
+        FileUtils.fileWrite(file.getAbsolutePath(), "; " + name + "\n");
+        assertTrue(file.setLastModified(MODIFIED));
+        return file;
+    }
+}
@@ -0,0 +1,184 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.phpmaven.plugin.build;
+
+import com.google.common.collect.Lists;
+import junit.framework.TestCase;
+import org.codehaus.plexus.util.FileUtils;
+import org.codehaus.plexus.util.cli.StreamConsumer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Files executed by a PHP worker have to give the same results as files executed by their own
+ * PHP process. Needs "php" on the path, the tests pass without doing anything otherwise.
+ *
+ * @author Tobias Sarnowski
+ */
+public class PhpWorkerTest extends TestCase {
+
+    private static final String PHP = "php";
+
+    private static final String[] PHP_PARAMETERS = {"-d", "display_errors=1", "-d", "error_reporting=-1"};
+
+    private File directory;
+    private ProcessWatchdog watchdog;
+    private PhpWorker worker;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = File.createTempFile("phpworker", "");
+        directory.delete();
+        directory.mkdirs();
+        watchdog = new ProcessWatchdog();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (worker != null) {
+            worker.close();
+        }
+        FileUtils.deleteDirectory(directory);
+    }
+
+    public void testGlobalsOfFileLikeOwnProcess() throws Exception {
+        if (!isPhpAvailable()) {
+            return;
+        }
+        final File file = createFile("Config.php",
+            "<?php\n"
+            + "$config = array('name' => 'phpmaven');\n"
+            + "function phpmaven_test_config() {\n"
+            + "    global $config;\n"
+            + "    return $config['name'];\n"
+            + "}\n"
+            + "echo 'config: ', phpmaven_test_config(), \"\\n\";\n");
+
+        final List<String> expected = executeInOwnProcess(file);
+        assertEquals(Arrays.asList("config: phpmaven"), expected);
+        assertEquals(expected, executeInWorker(file));
+    }
+
+    public void testGlobalsOfLoadedFileStay() throws Exception {
+        if (!isPhpAvailable()) {
+            return;
+        }
+        final File config = createFile("Config.php",
+            "<?php\n"
+            + "$config = array('name' => 'phpmaven');\n"
+            + "function phpmaven_test_config() {\n"
+            + "    global $config;\n"
+            + "    return $config['name'];\n"
+            + "}\n");
+        final File uses = createFile("Uses.php",
+            "<?php\n"
+            + "require_once 'Config.php';\n"
+            + "echo 'uses: ', phpmaven_test_config(), \"\\n\";\n");
+
+        assertEquals(executeInOwnProcess(config), executeInWorker(config));
+        // Config.php is not executed again, its globals are still there
+        assertEquals(executeInOwnProcess(uses), executeInWorker(uses));
+    }
+
+    public void testFilesDoNotBreakWorker() throws Exception {
+        if (!isPhpAvailable()) {
+            return;
+        }
+        final File overwrite = createFile("Overwrite.php",
+            "<?php\n"
+            + "$request = '';\n"
+            + "$parts = null;\n"
+            + "$output = 42;\n"
+            + "echo \"overwritten\\n\";\n");
+        final File next = createFile("Next.php", "<?php\necho \"next\\n\";\n");
+
+        assertEquals(executeInOwnProcess(overwrite), executeInWorker(overwrite));
+        assertEquals(executeInOwnProcess(next), executeInWorker(next));
+    }
+
+    private File createFile(String name, String content) throws IOException {
+        final File file = new File(directory, name);
+        FileUtils.fileWrite(file.getAbsolutePath(), content);
+        return file;
+    }
+
+    private List<String> executeInOwnProcess(File file) throws Exception {
+        final List<String> command = command();
+        command.add(file.getAbsolutePath());
+        final Process process = new ProcessBuilder(command).directory(directory).redirectErrorStream(true).start();
+        final List<String> lines = readLines(process);
+        assertEquals(0, process.waitFor());
+        return lines;
+    }
+
+    private List<String> executeInWorker(File file) throws Exception {
+        if (worker == null) {
+            final File script = new File(directory, "PhpWorker.php");
+            FileUtils.copyURLToFile(PhpWorker.class.getResource("PhpWorker.php"), script);
+            final List<String> command = command();
+            command.add(script.getAbsolutePath());
+            worker = new PhpWorker(command, watchdog);
+        }
+        final List<String> lines = Lists.newArrayList();
+        final PhpWorker.Result result = worker.execute(file, directory.getAbsolutePath(), new StreamConsumer() {
+            @Override
+            public void consumeLine(String line) {
+                lines.add(line);
+            }
+        }, 0);
+        assertEquals(0, result.getReturnCode());
+        assertTrue(result.getErrors().toString(), result.getErrors().isEmpty());
+        assertTrue(worker.isAlive());
+        return lines;
+    }
+
+    private List<String> command() {
+        final List<String> command = Lists.newArrayList(PHP);
+        command.addAll(Arrays.asList(PHP_PARAMETERS));
+        command.add("-d");
+        command.add("include_path=" + directory.getAbsolutePath());
+        return command;
+    }
+
+    private static List<String> readLines(Process process) throws IOException {
+        final List<String> lines = Lists.newArrayList();
+        final BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream()));
+        try {
+            String line = in.readLine();
+            while (line != null) {
+                lines.add(line);
+                line = in.readLine();
+            }
+        } finally {
+            in.close();
+        }
+        return lines;
+    }
+
+    private static boolean isPhpAvailable() throws InterruptedException {
+        try {
+            final Process process = new ProcessBuilder(PHP, "-v").redirectErrorStream(true).start();
+            readLines(process);
+            return process.waitFor() == 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}